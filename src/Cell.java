@@ -9,57 +9,271 @@ public class Cell {
     // holds contents of cell
     protected String contents;
 
-    // holds number value of cell
-    // if string or unevaluated formula than this is null
-    protected Double numberValue;
+    // holds number value of cell, valid only if hasValue is set
+    // hasValue is false for a string, an unevaluated formula or a
+    // formula in error, so values need no boxing
+    protected double value;
+    protected boolean hasValue;
 
     // holds the root of a formula tree for the formula cell
     protected FNode formulaTree;
 
+    // the formula tree flattened into postfix order for evaluation
+    protected Postfix formula;
+
     // the kind can be either a number, formula or string
-    protected String kind;
+    protected Kind kind;
+
+    // kinds of cell; name is what kind() returns
+    public enum Kind{
+        NUMBER("number"), STRING("string"), FORMULA("formula");
+
+        public final String name;
+
+        Kind(String name){
+            this.name = name;
+        }
+    }
+
+    // the value rendered by displayString and the value it was rendered
+    // from; rendered again only once the value changes
+    protected String display;
+    protected double displayed;
+
+    // set when the cell lies on a circular reference, which is only
+    // allowed in a sheet that tolerates cycles; the cell then has no
+    // value and displays CIRCULAR
+    protected boolean circular;
 
     // make function can be used to create different cell types based on input
+    // The contents are classified by a single scan instead of by catching
+    // the exception of Double.parseDouble, so string and formula cells no
+    // longer pay for building an exception.
+    // Runtime: O(K) plus the formula parse --> K: length of contents
     public static Cell make(String contents){
 
         if (contents == null)
             return null;
         contents = contents.trim();
-        try {
-            // if parseDouble works, the cell is a number
-            Double num = Double.parseDouble(contents);
+        NumberScanner scanner = new NumberScanner();
+        if (scanner.scan(contents)) {
+            // the contents are a number Double.parseDouble accepts
             Cell numCell = new Cell();
-            numCell.kind = "number";
-            numCell.numberValue = num;
+            numCell.kind = Kind.NUMBER;
+            numCell.value = scanner.value;
+            numCell.hasValue = true;
             numCell.formulaTree = null;
             numCell.contents = contents;
             return numCell;
-        } catch(Exception e) {
-            // if cell is formula:
-            if (contents.charAt(0) == '=') {
-                Cell formulaCell = new Cell();
-                formulaCell.kind = "formula";
-                formulaCell.numberValue = null;
-                FNode root = FNode.parseFormulaString(contents);
-                formulaCell.formulaTree = root;
-                formulaCell.contents = contents;
-                return formulaCell;
+        }
+        // if cell is formula:
+        if (contents.charAt(0) == '=') {
+            Cell formulaCell = new Cell();
+            formulaCell.kind = Kind.FORMULA;
+            FNode root = FNode.parseFormulaString(contents);
+            formulaCell.formulaTree = root;
+            formulaCell.formula = new Postfix(root);
+            formulaCell.contents = contents;
+            return formulaCell;
+        }
+        else{
+            // if cell is string
+            Cell stringCell = new Cell();
+            stringCell.kind = Kind.STRING;
+            stringCell.formulaTree = null;
+            stringCell.contents = contents;
+            return stringCell;
+        }
+    }
+
+    // makes a number cell from contents already known to read as value,
+    // without scanning them again
+    protected static Cell number(String contents, double value){
+        Cell numCell = new Cell();
+        numCell.kind = Kind.NUMBER;
+        numCell.value = value;
+        numCell.hasValue = true;
+        numCell.contents = contents;
+        return numCell;
+    }
+
+    // Recognizes exactly the strings Double.parseDouble accepts once
+    // trimmed, without throwing for the ones it rejects:
+    //   [+-] (NaN | Infinity | Decimal [fFdD] | Hex [fFdD])
+    //   Decimal: Digits [. [Digits]] [Exponent] | . Digits [Exponent]
+    //   Exponent: (e|E) [+-] Digits
+    //   Hex: 0 (x|X) HexDigits with an optional point, (p|P) [+-] Digits
+    // A decimal with at most 15 significant digits and a power of ten
+    // up to 22 is computed as one exact multiply or divide, which gives
+    // the correctly rounded value; other numbers are handed to
+    // Double.parseDouble once they are known to be valid.
+    // memory complexity: O(1)
+    public static class NumberScanner{
+        // largest number of significant digits that a double holds exactly
+        protected static final int EXACT_DIGITS = 15;
+
+        // the powers of ten that a double holds exactly
+        protected static final double[] POWERS = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+        };
+
+        // value of the last string scanned, valid if scan returned true
+        public double value;
+
+        // Returns true if s is a number and sets value to it.
+        // Runtime: O(K) --> K: length of s
+        public boolean scan(String s){
+            int n = s.length();
+            int i = 0;
+            boolean negative = false;
+            if (i < n && (s.charAt(i) == '+' || s.charAt(i) == '-')){
+                negative = s.charAt(i) == '-';
+                i++;
+            }
+            if (i == n){
+                return false;
+            }
+            char c = s.charAt(i);
+            if (c == 'N' || c == 'I'){
+                String word = c == 'N' ? "NaN" : "Infinity";
+                if (n - i != word.length() || !s.startsWith(word, i)){
+                    return false;
+                }
+                value = c == 'N' ? Double.NaN
+                    : negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+                return true;
+            }
+            if (c == '0' && i + 1 < n && (s.charAt(i + 1) == 'x' || s.charAt(i + 1) == 'X')){
+                if (!scanHex(s, i + 2)){
+                    return false;
+                }
+                value = Double.parseDouble(s);
+                return true;
+            }
+
+            // mantissa: up to EXACT_DIGITS significant digits are kept in
+            // mantissa, scale is the power of ten they are shifted by
+            long mantissa = 0;
+            int significant = 0;
+            int scale = 0;
+            int digits = 0;
+            boolean point = false;
+            for (; i < n; i++){
+                c = s.charAt(i);
+                if (c >= '0' && c <= '9'){
+                    digits++;
+                    if (mantissa == 0 && c == '0'){
+                        // leading zeros are not significant
+                        if (point){
+                            scale--;
+                        }
+                    } else {
+                        significant++;
+                        if (significant <= EXACT_DIGITS){
+                            mantissa = mantissa * 10 + (c - '0');
+                            if (point){
+                                scale--;
+                            }
+                        } else if (!point){
+                            scale++;
+                        }
+                    }
+                } else if (c == '.' && !point){
+                    point = true;
+                } else {
+                    break;
+                }
             }
-            else{
-                // if cell is string
-                Cell stringCell = new Cell();
-                stringCell.kind = "string";
-                stringCell.numberValue = null;
-                stringCell.formulaTree = null;
-                stringCell.contents = contents;
-                return stringCell;
+            if (digits == 0){
+                return false;
             }
 
+            // exponent, kept from overflowing; any number that large is
+            // already infinite or zero
+            int exponent = 0;
+            if (i < n && (s.charAt(i) == 'e' || s.charAt(i) == 'E')){
+                i++;
+                boolean negativeExponent = false;
+                if (i < n && (s.charAt(i) == '+' || s.charAt(i) == '-')){
+                    negativeExponent = s.charAt(i) == '-';
+                    i++;
+                }
+                int start = i;
+                for (; i < n && s.charAt(i) >= '0' && s.charAt(i) <= '9'; i++){
+                    exponent = Math.min(exponent * 10 + (s.charAt(i) - '0'), 100000);
+                }
+                if (i == start){
+                    return false;
+                }
+                if (negativeExponent){
+                    exponent = -exponent;
+                }
+            }
+            if (!suffixEnds(s, i)){
+                return false;
+            }
+
+            int power = scale + exponent;
+            if (significant > EXACT_DIGITS || power < -22 || power > 22){
+                value = Double.parseDouble(s);
+                return true;
+            }
+            double result = mantissa;
+            if (mantissa != 0){
+                result = power < 0 ? result / POWERS[-power] : result * POWERS[power];
+            }
+            value = negative ? -result : result;
+            return true;
+        }
+
+        // Helper that checks the part of a hex number after the 0x that
+        // starts at i
+        protected static boolean scanHex(String s, int i){
+            int n = s.length();
+            int digits = 0;
+            boolean point = false;
+            for (; i < n; i++){
+                char c = s.charAt(i);
+                if (Character.digit(c, 16) >= 0 && c < 128){
+                    digits++;
+                } else if (c == '.' && !point){
+                    point = true;
+                } else {
+                    break;
+                }
+            }
+            if (digits == 0 || i == n || (s.charAt(i) != 'p' && s.charAt(i) != 'P')){
+                return false;
+            }
+            i++;
+            if (i < n && (s.charAt(i) == '+' || s.charAt(i) == '-')){
+                i++;
+            }
+            int start = i;
+            while (i < n && s.charAt(i) >= '0' && s.charAt(i) <= '9'){
+                i++;
+            }
+            return i > start && suffixEnds(s, i);
+        }
+
+        // Helper that returns true if s ends at i, or right after a type
+        // suffix at i
+        protected static boolean suffixEnds(String s, int i){
+            if (i < s.length() && "fFdD".indexOf(s.charAt(i)) >= 0){
+                i++;
+            }
+            return i == s.length();
         }
     }
 
-    // returns the kind of the cell
+    // returns the kind of the cell: "number", "string" or "formula"
     public String kind(){
+        return kind.name;
+    }
+
+    // returns the kind of the cell as a Kind
+    public Kind getKind(){
         return kind;
     }
 
@@ -68,55 +282,155 @@ public class Cell {
         return contents;
     }
 
+    // returns whether cell lies on a circular reference
+    public boolean isCircular(){
+        return circular;
+    }
+
+    // marks whether the cell lies on a circular reference; takes effect
+    // on the next updateValue
+    public void setCircular(boolean circular){
+        this.circular = circular;
+    }
+
+    // gives a formula cell without a value the value 0, the starting
+    // point when a circular reference is solved by iteration
+    public void startIteration(){
+        if (kind == Kind.FORMULA && !hasValue){
+            value = 0.0;
+            hasValue = true;
+        }
+    }
+
+    // puts a formula cell in the error state until its next update
+    public void markError(){
+        if (kind == Kind.FORMULA){
+            hasValue = false;
+        }
+    }
+
     // returns whether cell is currently in error state
     public boolean isError(){
-        if (kind.equals("formula")){
-            if (numberValue == null){
-                return true;
-            }
-        }
-        return false;
+        return kind == Kind.FORMULA && !hasValue;
     }
 
     // displays the string of the cell
     // if cell is number or formula, displays number formatted to one decimal place
-    // if cell is in error state, "ERROR" is displayed
+    // if cell is in error state, "ERROR" is displayed, or "CIRCULAR"
+    // if it lies on a circular reference
+    // The rendered number is kept until the value changes.
+    // Runtime: O(1) when the value is unchanged
     public String displayString(){
-        if (kind.equals("number") && numberValue()!=null){
-            return String.format("%.1f",new Double(contents));
-        } else if (kind.equals("string")){
+        if (circular){
+            return "CIRCULAR";
+        }
+        if (kind == Kind.STRING){
             return contents;
+        } else if (!hasValue){
+            return "ERROR";
         } else {
-            if (numberValue == null){
-                return "ERROR";
-            } else {
-                return String.format("%.1f",new Double(numberValue));
+            if (display == null || Double.doubleToRawLongBits(displayed) != Double.doubleToRawLongBits(value)){
+                display = formatTenths(value);
+                displayed = value;
             }
+            return display;
+        }
+    }
+
+    // largest magnitude formatTenths renders itself, see there
+    protected static final double FAST_FORMAT_LIMIT = 1e9;
+    // distance from a half tenth within which formatTenths compares a
+    // value with the half tenth itself; well above the rounding error of
+    // multiplying by ten below FAST_FORMAT_LIMIT
+    protected static final double HALF_TENTH_MARGIN = 1e-5;
+
+    // true if the default locale writes numbers like "-12.5", so that
+    // formatTenths may write them itself
+    protected static final boolean PLAIN_LOCALE = plainLocale();
+
+    protected static boolean plainLocale(){
+        java.text.DecimalFormatSymbols symbols =
+            java.text.DecimalFormatSymbols.getInstance(Locale.getDefault(Locale.Category.FORMAT));
+        return symbols.getDecimalSeparator() == '.' && symbols.getZeroDigit() == '0'
+            && symbols.getMinusSign() == '-';
+    }
+
+    // Returns value formatted exactly as String.format("%.1f", value)
+    // without going through java.util.Formatter. Formatter rounds the
+    // shortest decimal form of a double half up. Away from a half tenth
+    // that is the side the value itself lies on. Near one, the shortest
+    // form is the half tenth exactly when the value is the double
+    // nearest to it, and otherwise lies on the same side as the value,
+    // so the value is compared with that double. Huge, NaN and infinite
+    // values, and locales that do not write "-12.5", are left to
+    // String.format.
+    // Runtime: O(1)
+    public static String formatTenths(double value){
+        double magnitude = Math.abs(value);
+        if (!PLAIN_LOCALE || !(magnitude < FAST_FORMAT_LIMIT)){
+            return String.format("%.1f", value);
+        }
+        double scaled = magnitude * 10;
+        double whole = Math.floor(scaled);
+        double fraction = scaled - whole;
+        boolean up = Math.abs(fraction - 0.5) < HALF_TENTH_MARGIN
+            ? magnitude >= (whole + 0.5) / 10
+            : fraction > 0.5;
+        long tenths = (long) whole + (up ? 1 : 0);
+        // the sign is kept even when the value rounds to zero, as
+        // Formatter does
+        boolean negative = value < 0 || (value == 0 && 1 / value < 0);
+        char[] digits = new char[24];
+        int at = digits.length;
+        digits[--at] = (char) ('0' + tenths % 10);
+        digits[--at] = '.';
+        long units = tenths / 10;
+        do {
+            digits[--at] = (char) ('0' + units % 10);
+            units /= 10;
+        } while (units > 0);
+        if (negative){
+            digits[--at] = '-';
         }
+        return new String(digits, at, digits.length - at);
     }
 
-    // displays the number value of cell
+    // displays the number value of cell, null if it has none
     public Double numberValue(){
 
-        return numberValue;
+        return hasValue ? value : null;
+    }
+
+    // returns whether the cell has a number value, see value
+    public boolean hasValue(){
+        return hasValue;
+    }
+
+    // returns the number value of the cell without boxing it; only
+    // meaningful if hasValue() is true
+    public double value(){
+        return value;
     }
 
     // updates the value in a formula cell
     // if cell is not a formula, nothing
+    // A missing or string reference puts the cell in error without
+    // throwing, so a blank cell with many dependents costs no more than
+    // a normal recalculation.
     // Runtime Complexity:
     //   O(1) for "number" and "string" cells
     //   O(T) for "formula" nodes where T is the number of nodes in the
     //        formula tree
     public void updateValue(Map<String,Cell> cellMap){
 
-        if (kind.equals("formula")) {
-
-            try {
-                numberValue = evalFormulaTree(this.formulaTree, cellMap);
-            } catch (EvalFormulaException e) {
-                numberValue = null;
+        if (kind == Kind.FORMULA) {
 
+            if (circular) {
+                hasValue = false;
+                return;
             }
+            value = formula.evaluate(cellMap);
+            hasValue = !formula.failed();
 
         }
 
@@ -134,81 +448,190 @@ public class Cell {
 
     }
 
-    // Recursively evaluate the formula tree rooted at the given
-    // node. Returns the computed value.
-    // Runtime Complexity: O(T) --> this is because the algorithm traverses the entire tree using post-order traversal
+    // Evaluate the formula tree rooted at the given node. Returns the
+    // computed value. The tree is flattened into postfix order and
+    // evaluated with a loop, so deep trees do not overflow the stack.
+    // Runtime Complexity: O(T) --> every node is visited once
     //   T: the number of nodes in the formula tree
     public static Double evalFormulaTree(FNode node, Map<String,Cell> cellMap){
-        if(node.type == TokenType.Plus){
-            Double leftVal = evalFormulaTree(node.left, cellMap);
-            Double rightVal = evalFormulaTree(node.right, cellMap);
-            return leftVal + rightVal;
-        }
-        else if(node.type == TokenType.Minus){
-            Double leftVal = evalFormulaTree(node.left, cellMap);
-            Double rightVal = evalFormulaTree(node.right, cellMap);
-            return leftVal - rightVal;
-        }
-        else if(node.type == TokenType.Multiply) {
-            Double leftVal = evalFormulaTree(node.left, cellMap);
-            Double rightVal = evalFormulaTree(node.right, cellMap);
-            return leftVal * rightVal;
-            // Cases for multiply, divide, negate
-        }
-        else if(node.type == TokenType.Divide) {
-            Double leftVal = evalFormulaTree(node.left, cellMap);
-            Double rightVal = evalFormulaTree(node.right, cellMap);
-            return leftVal / rightVal;
-            // Cases for multiply, divide, negate
-        }
-        else if(node.type == TokenType.Negate) {
-            Double leftVal = evalFormulaTree(node.left, cellMap);
-            return -1*leftVal;
-            // Cases for multiply, divide, negate
-        }
-        else if(node.type == TokenType.Number){
-            return new Double(node.data);
-            // node.data contains a string of a number
-            // converts it to a double and return
-        }
-        else if(node.type == TokenType.CellID){
-            Cell temp = cellMap.get(node.data);
-            if (temp == null || temp.kind.equals("string") || temp.numberValue() == null){
-                throw new EvalFormulaException(node.data+ " was id not set");
-            }
-            return temp.numberValue();
+        return new Postfix(node).eval(cellMap);
+    }
 
+    // A formula tree flattened into postfix order: the operands of each
+    // operation come right before it. Evaluation is a single loop with
+    // an array of pending values instead of recursion, and number
+    // constants are parsed once when the formula is built. The array is
+    // kept between evaluations, so evaluating allocates nothing; a
+    // formula is only evaluated by one thread at a time.
+    // memory complexity: O(T), T: the number of nodes in the formula tree
+    public static class Postfix{
+        // operation of each step
+        protected final TokenType[] ops;
+        // value of each Number step
+        protected final double[] numbers;
+        // referenced id of each CellID step, null for other steps
+        protected final String[] ids;
+        // location of each referenced id in a ColumnStore, see
+        // ColumnStore.locate
+        protected final long[] locations;
+        // pending values during evaluation, sized for the most at once
+        protected final double[] stack;
+        // step at which the last evaluate failed, such as a reference to
+        // a missing cell; -1 if it produced a value
+        protected int failed = -1;
+
+        // Flattens the tree rooted at root. Post-order is produced as
+        // the reverse of a root, right, left traversal done with a stack.
+        // Runtime Complexity: O(T)
+        public Postfix(FNode root){
+            List<FNode> nodes = new ArrayList<>();
+            Deque<FNode> pending = new ArrayDeque<>();
+            pending.push(root);
+            while (!pending.isEmpty()){
+                FNode node = pending.pop();
+                nodes.add(node);
+                if (node.left != null){
+                    pending.push(node.left);
+                }
+                if (node.right != null){
+                    pending.push(node.right);
+                }
+            }
+            Collections.reverse(nodes);
+
+            int n = nodes.size();
+            ops = new TokenType[n];
+            numbers = new double[n];
+            ids = new String[n];
+            locations = new long[n];
+            int depth = 0, max = 0;
+            for (int i = 0; i < n; i++){
+                FNode node = nodes.get(i);
+                ops[i] = node.type;
+                if (node.type == TokenType.Number){
+                    numbers[i] = Double.parseDouble(node.data);
+                    depth++;
+                } else if (node.type == TokenType.CellID){
+                    ids[i] = node.data;
+                    locations[i] = ColumnStore.locate(node.data);
+                    depth++;
+                } else if (node.type != TokenType.Negate){
+                    depth--;
+                }
+                max = Math.max(max, depth);
+            }
+            stack = new double[max];
         }
-        else{
-            throw new EvalFormulaException("Error with TokenType ’"+node.type+"’");
+
+        // Computes the value of the formula. Throws an EvalFormulaException
+        // if a referenced cell is missing, a string or in an error state.
+        // Runtime Complexity: O(T)
+        public double eval(Map<String,Cell> cellMap){
+            double result = evaluate(cellMap);
+            if (failed >= 0){
+                throw new EvalFormulaException(error());
+            }
+            return result;
         }
 
-    }
+        // returns whether the last evaluate failed, see error
+        public boolean failed(){
+            return failed >= 0;
+        }
 
-    // returns the upstream IDs
-    public Set<String> getUpstreamIDs(){
-        Set<String> cells = new HashSet<>();
-        if (kind.equals("formula"))
-            getUpstreamIDs(formulaTree, cells);
-        return cells;
+        // returns why the last evaluate failed, null if it produced a
+        // value. The message is only built when asked for, so a failed
+        // evaluation allocates nothing.
+        public String error(){
+            if (failed < 0){
+                return null;
+            } else if (ops[failed] == TokenType.CellID){
+                return ids[failed]+ " was id not set";
+            } else {
+                return "Error with TokenType ’"+ops[failed]+"’";
+            }
+        }
+
+        // Computes the value of the formula without throwing. If a
+        // referenced cell is missing, a string or in an error state the
+        // formula is in error: evaluation stops there, the failed step is
+        // noted and NaN is returned. Since no operation can recover from
+        // an error, stopping is the same as carrying the error through
+        // the rest of the arithmetic. Values in a ColumnStore are read in
+        // place by location.
+        // Runtime Complexity: O(T)
+        public double evaluate(Map<String,Cell> cellMap){
+            failed = -1;
+            double[] stack = this.stack;
+            ColumnStore store = cellMap instanceof ColumnStore ? (ColumnStore) cellMap : null;
+            int top = 0;
+            for (int i = 0; i < ops.length; i++){
+                switch (ops[i]){
+                    case Number:
+                        stack[top++] = numbers[i];
+                        break;
+                    case CellID:
+                        if (store != null){
+                            if (!store.hasValue(locations[i], ids[i])){
+                                return fail(i);
+                            }
+                            stack[top++] = store.value(locations[i], ids[i]);
+                            break;
+                        }
+                        Cell temp = cellMap.get(ids[i]);
+                        if (temp == null || !temp.hasValue){
+                            return fail(i);
+                        }
+                        stack[top++] = temp.value;
+                        break;
+                    case Plus:
+                        top--;
+                        stack[top-1] = stack[top-1] + stack[top];
+                        break;
+                    case Minus:
+                        top--;
+                        stack[top-1] = stack[top-1] - stack[top];
+                        break;
+                    case Multiply:
+                        top--;
+                        stack[top-1] = stack[top-1] * stack[top];
+                        break;
+                    case Divide:
+                        top--;
+                        stack[top-1] = stack[top-1] / stack[top];
+                        break;
+                    case Negate:
+                        stack[top-1] = -1*stack[top-1];
+                        break;
+                    default:
+                        return fail(i);
+                }
+            }
+            return stack[0];
+        }
+
+        // Helper that notes the step at which evaluate failed and returns
+        // its result
+        protected double fail(int step){
+            failed = step;
+            return Double.NaN;
+        }
     }
 
     // Return a set of upstream cells from this cell. Cells of kind
     // "string" and "number" return an empty set.
-    // Runtime Complexity: O(T) --> looks through every node
+    // Runtime Complexity: O(T) --> looks through every formula step
     //   T: the number of nodes in the formula tree
-    protected void getUpstreamIDs(FNode node, Set<String> c){
-        if (node == null){
-            return;
-        } else if(node.type == TokenType.CellID){
-            c.add(node.data);
-        } else {
-            getUpstreamIDs(node.left,c);
-            getUpstreamIDs(node.right,c);
+    public Set<String> getUpstreamIDs(){
+        Set<String> cells = new HashSet<>();
+        if (kind == Kind.FORMULA){
+            for (String id : formula.ids){
+                if (id != null){
+                    cells.add(id);
+                }
+            }
         }
-
+        return cells;
     }
 
-
-
 }
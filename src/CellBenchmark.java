@@ -0,0 +1,138 @@
+import java.util.*;
+import java.io.*;
+
+// Benchmark of classifying cell contents during a bulk import. The
+// contents are a mix of numbers, text and formulas, as in a typical
+// sheet.
+//
+// "before" classifies the way Cell.make used to, by calling
+// Double.parseDouble and catching the exception it throws for text and
+// formulas. "after" uses Cell.NumberScanner, which never throws. Both
+// paths then build the cells with Cell.make, so the last line is the
+// cost of a whole import.
+//
+// The display section checks Cell.formatTenths against
+// String.format("%.1f") on a million values, many of them on or next to
+// a half tenth, and times both.
+//
+// usage: java CellBenchmark [cells] [percent numbers] [percent formulas]
+// The defaults import 10M cells, 40% numbers and 20% formulas.
+public class CellBenchmark{
+
+    // number of distinct contents; the import cycles through them
+    public static final int DISTINCT = 1 << 20;
+
+    public static String[] makeContents(int numbers, int formulas, Random rand){
+        String[] words = {"Total", "Q1 sales", "n/a", "Region", "east", "1st", "-", "Name"};
+        String[] contents = new String[DISTINCT];
+        for (int i = 0; i < DISTINCT; i++){
+            int pick = rand.nextInt(100);
+            if (pick < numbers){
+                contents[i] = rand.nextBoolean() ? "" + rand.nextInt(100000)
+                                                 : String.format("%.2f", rand.nextDouble() * 1000);
+            } else if (pick < numbers + formulas){
+                contents[i] = "=A" + (1 + rand.nextInt(1000)) + " + B" + (1 + rand.nextInt(1000)) + " * 2";
+            } else {
+                contents[i] = words[rand.nextInt(words.length)] + " " + rand.nextInt(1000);
+            }
+        }
+        return contents;
+    }
+
+    // returns the number of contents that are numbers, classified the
+    // old way
+    public static long classifyByException(String[] contents, long cells){
+        long found = 0;
+        for (long c = 0; c < cells; c++){
+            try {
+                Double.parseDouble(contents[(int) (c % DISTINCT)]);
+                found++;
+            } catch (Exception e){
+                // text or a formula
+            }
+        }
+        return found;
+    }
+
+    // returns the number of contents that are numbers, classified by scan
+    public static long classifyByScan(String[] contents, long cells){
+        long found = 0;
+        Cell.NumberScanner scanner = new Cell.NumberScanner();
+        for (long c = 0; c < cells; c++){
+            if (scanner.scan(contents[(int) (c % DISTINCT)])){
+                found++;
+            }
+        }
+        return found;
+    }
+
+    public static void main(String args[]){
+        PrintStream o = System.out;
+        long cells   = args.length > 0 ? Long.parseLong(args[0]) : 10000000L;
+        int numbers  = args.length > 1 ? Integer.parseInt(args[1]) : 40;
+        int formulas = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        String[] contents = makeContents(numbers, formulas, new Random(42));
+
+        // warm up both paths
+        classifyByException(contents, DISTINCT);
+        classifyByScan(contents, DISTINCT);
+
+        long start = System.nanoTime();
+        long before = classifyByException(contents, cells);
+        double beforeMs = (System.nanoTime() - start) / 1e6;
+        start = System.nanoTime();
+        long after = classifyByScan(contents, cells);
+        double afterMs = (System.nanoTime() - start) / 1e6;
+        if (before != after){
+            throw new RuntimeException("Classifiers disagree: " + before + " vs " + after);
+        }
+        o.printf("Classified %d cells (%d%% numbers, %d%% formulas)\n", cells, numbers, formulas);
+        o.printf("  %-15s %8.0f ms (%.1f ns per cell)\n", "before:", beforeMs, beforeMs * 1e6 / cells);
+        o.printf("  %-15s %8.0f ms (%.1f ns per cell)\n", "after:", afterMs, afterMs * 1e6 / cells);
+
+        start = System.nanoTime();
+        long built = 0;
+        for (long c = 0; c < cells; c++){
+            if (Cell.make(contents[(int) (c % DISTINCT)]) != null){
+                built++;
+            }
+        }
+        double makeMs = (System.nanoTime() - start) / 1e6;
+        o.printf("  %-15s %8.0f ms (%.1f ns per cell)\n", "Cell.make:", makeMs, makeMs * 1e6 / built);
+
+        timeDisplay(o, 1000000, new Random(25));
+    }
+
+    // checks formatTenths against String.format and times both
+    public static void timeDisplay(PrintStream o, int count, Random rand){
+        double[] values = new double[count];
+        for (int i = 0; i < count; i += 4){
+            double tie = (rand.nextInt(2000000) - 1000000 + 0.5) / 10;
+            values[i] = tie;
+            values[Math.min(i + 1, count - 1)] = Math.nextUp(tie);
+            values[Math.min(i + 2, count - 1)] = Math.nextDown(tie);
+            values[Math.min(i + 3, count - 1)] = (rand.nextDouble() - 0.5) * Math.pow(10, rand.nextInt(12) - 3);
+        }
+        long start = System.nanoTime();
+        String[] before = new String[count];
+        for (int i = 0; i < count; i++){
+            before[i] = String.format("%.1f", values[i]);
+        }
+        double beforeMs = (System.nanoTime() - start) / 1e6;
+        start = System.nanoTime();
+        String[] after = new String[count];
+        for (int i = 0; i < count; i++){
+            after[i] = Cell.formatTenths(values[i]);
+        }
+        double afterMs = (System.nanoTime() - start) / 1e6;
+        for (int i = 0; i < count; i++){
+            if (!before[i].equals(after[i])){
+                throw new RuntimeException("Formatters disagree on " + values[i] + ": "
+                                           + before[i] + " vs " + after[i]);
+            }
+        }
+        o.printf("\nDisplayed %d values\n", count);
+        o.printf("  %-15s %8.0f ms (%.1f ns per value)\n", "String.format:", beforeMs, beforeMs * 1e6 / count);
+        o.printf("  %-15s %8.0f ms (%.1f ns per value)\n", "formatTenths:", afterMs, afterMs * 1e6 / count);
+    }
+}
@@ -0,0 +1,724 @@
+import java.util.*;
+
+// Storage for the cells of a spreadsheet, kept by column. Each column
+// is split into blocks of BLOCK_SIZE rows holding the number values in
+// a double[] lane and the kind of each cell in a byte[] lane. Number
+// cells are stored as nothing more than their value, so a full block of
+// plain numbers costs about nine bytes per cell and reading down a
+// column reads memory in order. Strings, numbers whose contents cannot
+// be rebuilt from their value (such as "1.50") and formulas are kept
+// as their Cell in an Object[] lane that a block only allocates when
+// it needs it. Numbers kept as their value use that lane to keep their
+// display string once shown, until they are next written.
+//
+// Sheets are often sparse, so neither the columns nor the blocks are
+// laid out by position until they fill up. Blocks are found through a
+// hash table keyed by column and block number, so a cell far out at
+// ZZZZZ1 or A999999999 costs no more than one at A1. A new block is
+// sparse: its lanes hold only the occupied slots, in order, found by
+// binary search, and grow as cells are added. Once a block holds more
+// than SPARSE_LIMIT cells it turns dense and its lanes are indexed by
+// slot directly.
+//
+// IDs that are not a column of capital letters followed by a row
+// number without leading zeros are kept in a plain map instead.
+//
+// Implements Map so the rest of the sheet can use it like the HashMap
+// it replaces. get returns the stored Cell, except for a number kept as
+// its value, for which it builds a Cell without parsing. Formula
+// evaluation reads values through hasValue and value instead, and the
+// sheet reads what it shows through displayString and contents, which
+// format a number straight from its value.
+// memory complexity: O(N + B) --> N: cells, B: blocks with any cell;
+//   about 9 bytes per cell in dense blocks and 11 in sparse ones, plus
+//   the size of the formula and text cells
+public class ColumnStore extends AbstractMap<String, Cell>{
+
+    // rows per block; a power of two
+    public static final int BLOCK_BITS = 12;
+    public static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+
+    // most cells a sparse block holds before it turns dense. A dense
+    // block costs about 9 * BLOCK_SIZE bytes and a sparse one about 11
+    // per cell, so a block that turns dense holds its cells in at most
+    // about 36 bytes each.
+    public static final int SPARSE_LIMIT = BLOCK_SIZE / 4;
+
+    // kinds of cell in the kind lane. INTEGER and DECIMAL numbers have
+    // contents equal to their value printed as a long or a double;
+    // other numbers keep their text.
+    protected static final byte EMPTY = 0, INTEGER = 1, DECIMAL = 2, NUMBER_TEXT = 3,
+                                STRING = 4, FORMULA = 5;
+
+    // longest column name, which keeps column numbers in an int
+    protected static final int MAX_LETTERS = 5;
+    // longest row number, which keeps row numbers in an int
+    protected static final int MAX_DIGITS = 9;
+
+    // marks a free entry of the block table; locations are never negative
+    protected static final long NO_KEY = -1;
+
+    // A block of BLOCK_SIZE rows of one column. In a sparse block the
+    // lanes hold the cells of the occupied slots listed in slots, in
+    // increasing order; in a dense block slots is null and the lanes
+    // are indexed by slot.
+    protected static class Block{
+        protected char[] slots = new char[2];
+        protected double[] values = new double[2];
+        protected byte[] kinds = new byte[2];
+        // the Cell of NUMBER_TEXT, STRING and FORMULA cells, and the
+        // rendered display string of INTEGER and DECIMAL cells once
+        // shown; null until the block holds one of those
+        protected Object[] objects;
+        // number of cells in the block
+        protected int used;
+
+        // Returns the index in the lanes of slot, or -1 if a sparse
+        // block has no cell there. A dense block always has an index,
+        // whose kind is EMPTY if it has no cell.
+        // Runtime: O(log(SPARSE_LIMIT))
+        protected int find(int slot){
+            if (slots == null){
+                return slot;
+            }
+            int index = Arrays.binarySearch(slots, 0, used, (char) slot);
+            return index < 0 ? -1 : index;
+        }
+
+        // Returns the index in the lanes for a new cell at slot, which
+        // has none: makes room in a sparse block, growing its lanes or
+        // turning it dense when full
+        // Runtime: O(SPARSE_LIMIT) in a sparse block, O(1) in a dense one
+        protected int insert(int slot){
+            if (slots == null){
+                return slot;
+            }
+            if (used == slots.length){
+                if (used >= SPARSE_LIMIT){
+                    makeDense();
+                    return slot;
+                }
+                int capacity = Math.min(used * 2, SPARSE_LIMIT);
+                slots = Arrays.copyOf(slots, capacity);
+                values = Arrays.copyOf(values, capacity);
+                kinds = Arrays.copyOf(kinds, capacity);
+                if (objects != null){
+                    objects = Arrays.copyOf(objects, capacity);
+                }
+            }
+            int index = -Arrays.binarySearch(slots, 0, used, (char) slot) - 1;
+            int after = used - index;
+            System.arraycopy(slots, index, slots, index + 1, after);
+            System.arraycopy(values, index, values, index + 1, after);
+            System.arraycopy(kinds, index, kinds, index + 1, after);
+            if (objects != null){
+                System.arraycopy(objects, index, objects, index + 1, after);
+            }
+            slots[index] = (char) slot;
+            return index;
+        }
+
+        // Removes the cell at index of the lanes
+        // Runtime: O(SPARSE_LIMIT) in a sparse block, O(1) in a dense one
+        protected void delete(int index){
+            if (slots == null){
+                kinds[index] = EMPTY;
+                if (objects != null){
+                    objects[index] = null;
+                }
+                return;
+            }
+            int after = used - index - 1;
+            System.arraycopy(slots, index + 1, slots, index, after);
+            System.arraycopy(values, index + 1, values, index, after);
+            System.arraycopy(kinds, index + 1, kinds, index, after);
+            kinds[used - 1] = EMPTY;
+            if (objects != null){
+                System.arraycopy(objects, index + 1, objects, index, after);
+                objects[used - 1] = null;
+            }
+        }
+
+        // Helper that lays the lanes out by slot
+        protected void makeDense(){
+            double[] denseValues = new double[BLOCK_SIZE];
+            byte[] denseKinds = new byte[BLOCK_SIZE];
+            Object[] denseObjects = objects == null ? null : new Object[BLOCK_SIZE];
+            for (int i = 0; i < used; i++){
+                denseValues[slots[i]] = values[i];
+                denseKinds[slots[i]] = kinds[i];
+                if (objects != null){
+                    denseObjects[slots[i]] = objects[i];
+                }
+            }
+            values = denseValues;
+            kinds = denseKinds;
+            objects = denseObjects;
+            slots = null;
+        }
+
+        // Helper that allocates the object lane
+        protected void needObjects(){
+            if (objects == null){
+                objects = new Object[kinds.length];
+            }
+        }
+
+        // returns the slot of the cell at index of the lanes
+        protected int slotAt(int index){
+            return slots == null ? index : slots[index];
+        }
+
+        // returns an estimate of the bytes held by the block, not counting
+        // the text and formula cells it refers to
+        protected long bytes(){
+            long bytes = 32 + 2 * 16 + 9L * kinds.length;
+            if (slots != null){
+                bytes += 16 + 2L * slots.length;
+            }
+            if (objects != null){
+                bytes += 16 + 4L * objects.length;
+            }
+            return bytes;
+        }
+    }
+
+    // Table of blocks by key, the location of their first row (see
+    // locate), using open addressing with linear probing. A key of
+    // NO_KEY marks a free entry. At most half the entries are in use.
+    protected long[] keys;
+    protected Block[] table;
+
+    // cells whose IDs do not fit the column and row form
+    protected Map<String, Cell> others = new HashMap<>();
+
+    // number of cells
+    protected int size;
+
+    // number of blocks allocated
+    protected int blocks;
+
+    // smallest block table
+    protected static final int MIN_TABLE = 16;
+
+    public ColumnStore(){
+        keys = new long[MIN_TABLE];
+        Arrays.fill(keys, NO_KEY);
+        table = new Block[MIN_TABLE];
+    }
+
+    // Returns the location of id, its column number shifted left 32
+    // bits plus its row number, or -1 if id is not a column of capital
+    // letters followed by a row number without leading zeros.
+    // Runtime: O(K) --> K: length of id
+    public static long locate(String id){
+        int n = id.length();
+        int letters = 0;
+        int column = 0;
+        while (letters < n && id.charAt(letters) >= 'A' && id.charAt(letters) <= 'Z'){
+            column = column * 26 + (id.charAt(letters) - 'A' + 1);
+            letters++;
+        }
+        int digits = n - letters;
+        if (letters == 0 || letters > MAX_LETTERS || digits == 0 || digits > MAX_DIGITS
+            || id.charAt(letters) == '0'){
+            return -1;
+        }
+        int row = 0;
+        for (int i = letters; i < n; i++){
+            char c = id.charAt(i);
+            if (c < '0' || c > '9'){
+                return -1;
+            }
+            row = row * 10 + (c - '0');
+        }
+        return ((long) (column - 1) << 32) | row;
+    }
+
+    // returns the ID of a location given by locate
+    protected static String idOf(long location){
+        int column = (int) (location >>> 32) + 1;
+        StringBuilder letters = new StringBuilder();
+        while (column > 0){
+            column--;
+            letters.append((char) ('A' + column % 26));
+            column /= 26;
+        }
+        return letters.reverse().toString() + (int) location;
+    }
+
+    // returns the key of the block holding location
+    protected static long keyOf(long location){
+        return location & ~(long) (BLOCK_SIZE - 1);
+    }
+
+    // returns the slot of location within its block
+    protected static int slotOf(long location){
+        return (int) location & (BLOCK_SIZE - 1);
+    }
+
+    // returns the preferred entry of key in the block table
+    protected int home(long key){
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & (keys.length - 1);
+    }
+
+    // Returns the entry of key in the block table, or the free entry
+    // where it would go
+    // Runtime: O(1) expected
+    protected int entry(long key){
+        int mask = keys.length - 1;
+        int i = home(key);
+        while (keys[i] != NO_KEY && keys[i] != key){
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    // returns the block holding location, or null if there is none
+    protected Block block(long location){
+        return table[entry(keyOf(location))];
+    }
+
+    // returns the block holding location, creating it if needed
+    protected Block blockFor(long location){
+        long key = keyOf(location);
+        int i = entry(key);
+        if (table[i] != null){
+            return table[i];
+        }
+        if ((blocks + 1) * 2 > keys.length){
+            resize(keys.length * 2);
+            i = entry(key);
+        }
+        Block block = new Block();
+        keys[i] = key;
+        table[i] = block;
+        blocks++;
+        return block;
+    }
+
+    // Releases the block holding location. Later entries of the same
+    // probe run are shifted back so lookups never stop at the hole.
+    // Runtime: O(1) expected
+    protected void release(long location){
+        int mask = keys.length - 1;
+        int hole = entry(keyOf(location));
+        keys[hole] = NO_KEY;
+        table[hole] = null;
+        blocks--;
+        for (int i = (hole + 1) & mask; keys[i] != NO_KEY; i = (i + 1) & mask){
+            int want = home(keys[i]);
+            // move the entry unless its home lies after the hole and up
+            // to i, going around the end of the table
+            boolean stays = hole <= i ? (want > hole && want <= i) : (want > hole || want <= i);
+            if (!stays){
+                keys[hole] = keys[i];
+                table[hole] = table[i];
+                keys[i] = NO_KEY;
+                table[i] = null;
+                hole = i;
+            }
+        }
+        if (keys.length > MIN_TABLE && blocks * 8 < keys.length){
+            resize(keys.length / 2);
+        }
+    }
+
+    // Helper that rebuilds the block table with the given number of
+    // entries, a power of two
+    protected void resize(int capacity){
+        long[] oldKeys = keys;
+        Block[] oldTable = table;
+        keys = new long[capacity];
+        Arrays.fill(keys, NO_KEY);
+        table = new Block[capacity];
+        for (int i = 0; i < oldKeys.length; i++){
+            if (oldKeys[i] != NO_KEY){
+                int j = entry(oldKeys[i]);
+                keys[j] = oldKeys[i];
+                table[j] = oldTable[i];
+            }
+        }
+    }
+
+    // Returns true if the cell at location has a number value: a number
+    // cell or a formula cell that is not in error. id is only read for
+    // IDs that have no location.
+    // Runtime: O(1) expected
+    public boolean hasValue(long location, String id){
+        if (location < 0){
+            Cell cell = others.get(id);
+            return cell != null && cell.hasValue();
+        }
+        Block block = block(location);
+        if (block == null){
+            return false;
+        }
+        int index = block.find(slotOf(location));
+        if (index < 0){
+            return false;
+        }
+        byte kind = block.kinds[index];
+        if (kind == FORMULA){
+            return ((Cell) block.objects[index]).hasValue();
+        }
+        return kind != EMPTY && kind != STRING;
+    }
+
+    // Returns the number value of the cell at location; only meaningful
+    // if hasValue is true
+    // Runtime: O(1) expected
+    public double value(long location, String id){
+        if (location < 0){
+            return others.get(id).value();
+        }
+        Block block = block(location);
+        int index = block.find(slotOf(location));
+        if (block.kinds[index] == FORMULA){
+            return ((Cell) block.objects[index]).value();
+        }
+        return block.values[index];
+    }
+
+    // Copies the values of rows fromRow onwards of the named column into
+    // values, one per row; rows without a number value get NaN. Each
+    // block is looked up once and read in order, so this is a
+    // sequential scan. Returns the number of rows that had a value.
+    // Runtime: O(R) --> R: length of values
+    public int readColumn(String column, int fromRow, double[] values){
+        long start = locate(column + "1");
+        if (start < 0){
+            throw new IllegalArgumentException("Not a valid column: " + column);
+        }
+        int found = 0;
+        start &= ~0xFFFFFFFFL;
+        Block block = null;
+        for (int i = 0; i < values.length; i++){
+            long location = start | (fromRow + i);
+            if (i == 0 || slotOf(location) == 0){
+                block = block(location);
+            }
+            int index = block == null ? -1 : block.find(slotOf(location));
+            byte kind = index < 0 ? EMPTY : block.kinds[index];
+            if (kind == FORMULA && ((Cell) block.objects[index]).hasValue()){
+                values[i] = ((Cell) block.objects[index]).value();
+                found++;
+            } else if (kind != EMPTY && kind != STRING && kind != FORMULA){
+                values[i] = block.values[index];
+                found++;
+            } else {
+                values[i] = Double.NaN;
+            }
+        }
+        return found;
+    }
+
+    // returns an estimate of the bytes held by the block table and the
+    // blocks, not counting the text and formula cells they refer to
+    public long blockBytes(){
+        long bytes = 2 * 16 + 12L * keys.length;
+        for (Block block : table){
+            if (block != null){
+                bytes += block.bytes();
+            }
+        }
+        return bytes;
+    }
+
+    @Override public int size(){
+        return size + others.size();
+    }
+
+    @Override public boolean containsKey(Object id){
+        long location = locate((String) id);
+        if (location < 0){
+            return others.containsKey(id);
+        }
+        Block block = block(location);
+        if (block == null){
+            return false;
+        }
+        int index = block.find(slotOf(location));
+        return index >= 0 && block.kinds[index] != EMPTY;
+    }
+
+    // Returns the cell with the given id: the stored Cell, or a new Cell
+    // for a number kept as its value
+    // Runtime: O(1) expected
+    @Override public Cell get(Object id){
+        long location = locate((String) id);
+        if (location < 0){
+            return others.get(id);
+        }
+        Block block = block(location);
+        if (block == null){
+            return null;
+        }
+        int index = block.find(slotOf(location));
+        return index < 0 ? null : cellAt(block, index);
+    }
+
+    // Helper that returns the cell at index of the lanes of block, see get
+    protected Cell cellAt(Block block, int index){
+        byte kind = block.kinds[index];
+        if (kind == EMPTY){
+            return null;
+        } else if (kind == INTEGER || kind == DECIMAL){
+            Cell cell = Cell.number(contentsAt(block, index), block.values[index]);
+            if (block.objects != null && block.objects[index] != null){
+                // hand over the kept rendering, see displayString
+                cell.display = (String) block.objects[index];
+                cell.displayed = cell.value;
+            }
+            return cell;
+        }
+        return (Cell) block.objects[index];
+    }
+
+    // Helper that returns the contents of the cell at index of the
+    // lanes of block, which has one
+    protected static String contentsAt(Block block, int index){
+        switch (block.kinds[index]){
+            case INTEGER:
+                return Long.toString((long) block.values[index]);
+            case DECIMAL:
+                return Double.toString(block.values[index]);
+            default:
+                return ((Cell) block.objects[index]).contents();
+        }
+    }
+
+    // Helper that returns the block holding location if it has a cell
+    // there, and sets index[0] to the cell's index in the lanes
+    protected Block cellBlock(long location, int[] index){
+        Block block = block(location);
+        if (block == null){
+            return null;
+        }
+        index[0] = block.find(slotOf(location));
+        return index[0] >= 0 && block.kinds[index[0]] != EMPTY ? block : null;
+    }
+
+    // Returns what Cell.displayString shows for the cell with the given
+    // id, or null if there is none. A number kept as its value is
+    // formatted straight from it, without building a Cell, and the
+    // rendering is kept in its object lane entry until the cell is next
+    // put, just as a Cell keeps its own until its value changes.
+    // Runtime: O(1) expected
+    public String displayString(String id){
+        long location = locate(id);
+        if (location < 0){
+            Cell cell = others.get(id);
+            return cell == null ? null : cell.displayString();
+        }
+        int[] index = new int[1];
+        Block block = cellBlock(location, index);
+        if (block == null){
+            return null;
+        }
+        byte kind = block.kinds[index[0]];
+        if (kind == INTEGER || kind == DECIMAL){
+            if (block.objects != null && block.objects[index[0]] != null){
+                return (String) block.objects[index[0]];
+            }
+            String display = Cell.formatTenths(block.values[index[0]]);
+            block.needObjects();
+            block.objects[index[0]] = display;
+            return display;
+        }
+        return ((Cell) block.objects[index[0]]).displayString();
+    }
+
+    // Returns the contents of the cell with the given id, or null if
+    // there is none
+    // Runtime: O(1) expected
+    public String contents(String id){
+        long location = locate(id);
+        if (location < 0){
+            Cell cell = others.get(id);
+            return cell == null ? null : cell.contents();
+        }
+        int[] index = new int[1];
+        Block block = cellBlock(location, index);
+        return block == null ? null : contentsAt(block, index[0]);
+    }
+
+    // Stores cell under id, keeping only the value of a number cell if
+    // its contents can be rebuilt from it. Returns the previous cell.
+    // Runtime: O(1) expected, O(SPARSE_LIMIT) for a new cell in a
+    //   sparse block
+    @Override public Cell put(String id, Cell cell){
+        long location = locate(id);
+        if (location < 0){
+            return others.put(id, cell);
+        }
+        Block block = blockFor(location);
+        int slot = slotOf(location);
+        int index = block.find(slot);
+        Cell previous = null;
+        if (index >= 0 && block.kinds[index] != EMPTY){
+            previous = cellAt(block, index);
+        } else {
+            index = block.insert(slot);
+            block.used++;
+            size++;
+        }
+        Object object = null;
+        byte kind;
+        if (cell.getKind() == Cell.Kind.FORMULA){
+            kind = FORMULA;
+            object = cell;
+        } else if (cell.getKind() == Cell.Kind.STRING){
+            kind = STRING;
+            object = cell;
+        } else {
+            double value = cell.value();
+            block.values[index] = value;
+            if (value == (long) value && cell.contents().equals(Long.toString((long) value))){
+                kind = INTEGER;
+            } else if (cell.contents().equals(Double.toString(value))){
+                kind = DECIMAL;
+            } else {
+                kind = NUMBER_TEXT;
+                object = cell;
+            }
+        }
+        block.kinds[index] = kind;
+        if (object != null){
+            block.needObjects();
+        }
+        if (block.objects != null){
+            block.objects[index] = object;
+        }
+        return previous;
+    }
+
+    // Removes the cell with the given id and returns it. A block is
+    // released once its last cell is removed.
+    // Runtime: O(1) expected, O(SPARSE_LIMIT) in a sparse block
+    @Override public Cell remove(Object id){
+        long location = locate((String) id);
+        if (location < 0){
+            return others.remove(id);
+        }
+        Block block = block(location);
+        int index = block == null ? -1 : block.find(slotOf(location));
+        if (index < 0 || block.kinds[index] == EMPTY){
+            return null;
+        }
+        Cell previous = cellAt(block, index);
+        block.delete(index);
+        size--;
+        if (--block.used == 0){
+            release(location);
+        }
+        return previous;
+    }
+
+    @Override public void clear(){
+        keys = new long[MIN_TABLE];
+        Arrays.fill(keys, NO_KEY);
+        table = new Block[MIN_TABLE];
+        others.clear();
+        size = 0;
+        blocks = 0;
+    }
+
+    // An entry of entrySet. A number kept as its value is only built
+    // into a Cell if getValue is called, so walking the keys builds
+    // nothing.
+    protected class Entry implements Map.Entry<String, Cell>{
+        protected final String id;
+        protected final Block block;
+        protected final int index;
+
+        protected Entry(String id, Block block, int index){
+            this.id = id;
+            this.block = block;
+            this.index = index;
+        }
+
+        @Override public String getKey(){
+            return id;
+        }
+
+        @Override public Cell getValue(){
+            return cellAt(block, index);
+        }
+
+        @Override public Cell setValue(Cell cell){
+            throw new UnsupportedOperationException();
+        }
+
+        @Override public boolean equals(Object other){
+            if (!(other instanceof Map.Entry)){
+                return false;
+            }
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>) other;
+            return id.equals(entry.getKey()) && Objects.equals(getValue(), entry.getValue());
+        }
+
+        @Override public int hashCode(){
+            return id.hashCode() ^ Objects.hashCode(getValue());
+        }
+    }
+
+    // Read-only view of every cell, column by column and row by row,
+    // then the cells with other IDs. Numbers kept as their value are
+    // built when an entry's value is asked for, see get.
+    @Override public Set<Map.Entry<String, Cell>> entrySet(){
+        return new AbstractSet<Map.Entry<String, Cell>>(){
+            @Override public int size(){
+                return ColumnStore.this.size();
+            }
+
+            @Override public Iterator<Map.Entry<String, Cell>> iterator(){
+                final Iterator<Map.Entry<String, Cell>> rest = others.entrySet().iterator();
+                // block keys in column and row order
+                final long[] order = new long[blocks];
+                int n = 0;
+                for (long key : keys){
+                    if (key != NO_KEY){
+                        order[n++] = key;
+                    }
+                }
+                Arrays.sort(order);
+                return new Iterator<Map.Entry<String, Cell>>(){
+                    int next = 0, index = -1;
+                    Block block = advance();
+
+                    // moves to the next occupied index and returns its
+                    // block, or null once the blocks are done
+                    Block advance(){
+                        index++;
+                        for (; next < order.length; next++, index = 0){
+                            Block at = table[entry(order[next])];
+                            int end = at.slots == null ? BLOCK_SIZE : at.used;
+                            for (; index < end; index++){
+                                if (at.kinds[index] != EMPTY){
+                                    return at;
+                                }
+                            }
+                        }
+                        return null;
+                    }
+
+                    @Override public boolean hasNext(){
+                        return block != null || rest.hasNext();
+                    }
+
+                    @Override public Map.Entry<String, Cell> next(){
+                        if (block == null){
+                            return rest.next();
+                        }
+                        long location = order[next] | block.slotAt(index);
+                        Map.Entry<String, Cell> entry = new Entry(idOf(location), block, index);
+                        block = advance();
+                        return entry;
+                    }
+                };
+            }
+        };
+    }
+}
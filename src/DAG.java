@@ -6,203 +6,666 @@ import java.util.*;
 // Model a Directed Acyclic Graph (DAG) which allows nodes (vertices)
 // to be specified by name as strings and added to the DAG by
 // specifiying their upstream dependencies as a set of string IDs.
-// Attempting to introduce a cycle causes an exception to be thrown.
+// Attempting to introduce a cycle causes an exception to be thrown,
+// unless cycles are allowed (see setAllowCycles).
 public class DAG{
 
 
-    // map that hold downstream link
-    protected Map<String, Set<String>> downstreamLinks;
+    // downstream links of each node, indexed by node number; null if
+    // the node has no downstream links. Once the DAG is frozen these
+    // only hold the links added since (see freeze).
+    protected IntSet[] downstreamLinks;
 
-    // map that holds upstream links
-    protected Map<String, Set<String>> upstreamLinks;
+    // upstream links of each node, indexed by node number; null if the
+    // node has no upstream links. Once the DAG is frozen these only
+    // hold the links added since (see freeze).
+    protected IntSet[] upstreamLinks;
 
-    // constructor creates empty hash maps
+    // links in the frozen form that have since been removed, by node
+    protected IntSet[] downstreamRemoved, upstreamRemoved;
+
+    // compact read-only form of the links as of the last freeze, null
+    // if the DAG was never frozen
+    protected Frozen frozen;
+
+    // number of links added or removed since the last freeze; once this
+    // passes MERGE_FRACTION of the frozen links (and at least MIN_DELTA)
+    // the changes are merged back by freezing again
+    protected int deltaLinks;
+    public static final int MERGE_FRACTION = 8;
+    public static final int MIN_DELTA = 1024;
+
+    // nodes with at least HIGH_FAN_OUT downstream links, see isHighFanOut
+    public static final int HIGH_FAN_OUT = 4096;
+
+    // downstream links of the high fan-out nodes a cone has reached, by
+    // node, kept sorted by position so that downstreamCone can take them
+    // as one run instead of sorting them with the rest of the cone. An
+    // entry is dropped when the downstream links of its node change and
+    // sorted again when positions have moved since (see orderVersion).
+    protected Map<Integer, Hub> hubs = new HashMap<>();
+    // incremented whenever existing nodes are given new positions
+    protected int orderVersion;
+
+    // with cycles allowed, addAll treats changes to at least one in
+    // BULK_FRACTION of the nodes as a bulk load
+    public static final int BULK_FRACTION = 8;
+
+    // Cell IDs are interned to dense node numbers the first time they
+    // are linked, so links are stored and traversed as ints: index maps
+    // an id to its number and names maps a number back to its id. A node
+    // left without links is released: its name becomes null and its
+    // number goes on the free list for reuse (see collectOrphans).
+    protected Map<String, Integer> index;
+    protected ArrayList<String> names;
+    protected IntList free = new IntList();
+
+    // nodes that may have been left without links by the current change
+    protected IntList maybeOrphans = new IntList();
+
+    // once more than COMPACT_MIN node numbers are in use and fewer than
+    // one in COMPACT_FRACTION of them belong to live nodes, the nodes
+    // are renumbered and the tables rebuilt at their current size
+    public static final int COMPACT_MIN = 1024;
+    public static final int COMPACT_FRACTION = 4;
+
+    // position of each node in a topological order of the DAG: every
+    // node has a larger position than all of its upstream links. Kept
+    // up to date as links are added (see insertLink). UNORDERED for
+    // nodes that have not been given a position.
+    protected int[] order;
+    protected static final int UNORDERED = Integer.MIN_VALUE;
+
+    // next free positions before and after all ordered nodes
+    protected int nextLow = -1, nextHigh = 0;
+
+    // level of each node: 0 without upstream links, otherwise one more
+    // than the highest level upstream. Nodes on a cycle share the level
+    // of their component. levelCounts[l] is the number of nodes at level
+    // l and maxLevel the highest level with any. Link changes only note
+    // the node downstream in levelSeeds, or set levelsStale once there
+    // are many; the levels from there on are brought up to date when
+    // next asked for (see updateLevels).
+    protected int[] level;
+    protected int[] levelCounts = new int[16];
+    protected int maxLevel;
+    protected IntList levelSeeds = new IntList();
+    protected boolean levelsStale;
+
+    // weakly connected components, the groups of nodes joined by links
+    // in either direction, as a union-find: unionParent leads towards
+    // the root of each node's component and unionSize holds the size at
+    // each root. Added links merge components as they come; a removed
+    // link may split one, which is not detected, so removals set
+    // unionStale and the components are rebuilt when next asked for.
+    // connectedCount is the number of components.
+    protected int[] unionParent, unionSize;
+    protected int connectedCount;
+    protected boolean unionStale;
+
+    // scratch space for searches: a node is marked when seen[node] ==
+    // epoch, which avoids clearing a visited set for every search, and
+    // reachedFrom[node] is the node it was reached from
+    protected int[] seen, reachedFrom;
+    protected int epoch;
+
+    // when true, links that close a cycle are kept instead of causing a
+    // CycleException; see setAllowCycles
+    protected boolean allowCycles;
+
+    // true once a link closing a cycle has been kept, until a search
+    // finds no cycles left. While set, links are stored without the
+    // Pearce-Kelly reordering and the order is rebuilt when needed.
+    protected boolean cyclic;
+
+    // true when links changed in a way that may invalidate the order or
+    // the circular nodes, which findComponents then recomputes
+    protected boolean stale;
+
+    // nodes on a cycle, and the strongly connected components with
+    // more than one node or a link to itself, as found by the last
+    // findComponents
+    protected BitSet circular = new BitSet();
+    protected List<int[]> components = new ArrayList<>();
+    protected Map<Integer, int[]> componentOf = new HashMap<>();
+
+    // closures computed by transitiveUpstream and transitiveDownstream,
+    // by node and least recently used first. An entry is dropped when a
+    // link change may alter it (see invalidateClosures).
+    protected Map<Integer, BitSet> upstreamClosures, downstreamClosures;
+    public static final int CLOSURE_CACHE_SIZE = 256;
+
+    // constructor creates an empty DAG
     public DAG(){
-        downstreamLinks = new HashMap<String, Set<String>>();
-        upstreamLinks   = new HashMap<String, Set<String>>();
+        index = new HashMap<String, Integer>();
+        names = new ArrayList<String>();
+        downstreamLinks = new IntSet[16];
+        upstreamLinks   = new IntSet[16];
+        downstreamRemoved = new IntSet[16];
+        upstreamRemoved   = new IntSet[16];
+        order = new int[16];
+        level = new int[16];
+        unionParent = new int[16];
+        unionSize = new int[16];
+        seen  = new int[16];
+        reachedFrom = new int[16];
+        Arrays.fill(order, UNORDERED);
+        upstreamClosures = newClosureCache();
+        downstreamClosures = newClosureCache();
+    }
+
+    // Helper that creates a closure cache holding the CLOSURE_CACHE_SIZE
+    // most recently used closures
+    protected static Map<Integer, BitSet> newClosureCache(){
+        return new LinkedHashMap<Integer, BitSet>(16, 0.75f, true){
+            @Override protected boolean removeEldestEntry(Map.Entry<Integer, BitSet> eldest){
+                return size() > CLOSURE_CACHE_SIZE;
+            }
+        };
     }
 
     // string representation of DAG
-    // loops through each hashmap:
-    // Runtime Complexity: O(U+D)
+    // loops through each node:
+    // Runtime Complexity: O(N+U+D)
+    // N = number of nodes
     // U = number of upstream links
     // D = number of downstream links
     @Override public String toString(){
         StringBuilder out = new StringBuilder();
         out.append("Upstream Links:\n");
-        Set<String> ids = upstreamLinks.keySet();
-        Iterator<String> idIter = ids.iterator();
-
-        while (idIter.hasNext()){
-            String id = idIter.next();
-            Set<String> linkSet = upstreamLinks.get(id);
-            out.append(String.format("%4s : %s\n", id, linkSet));
+        for (int node = 0; node < names.size(); node++){
+            if (count(node, true) > 0){
+                out.append(String.format("%4s : %s\n", names.get(node), new LinkSet(names.get(node), true)));
+            }
         }
 
         out.append("Downstream Links:\n");
-
-        Set<String> upLinkIds = downstreamLinks.keySet();
-
-        Iterator<String> iter =  upLinkIds.iterator();
-
-        while (iter.hasNext()){
-            String id = iter.next();
-            Set<String> linkSet = downstreamLinks.get(id);
-            if (linkSet != null && !linkSet.isEmpty())
-                out.append(String.format("%4s : %s\n", id, linkSet));
+        for (int node = 0; node < names.size(); node++){
+            if (count(node, false) > 0){
+                out.append(String.format("%4s : %s\n", names.get(node), new LinkSet(names.get(node), false)));
+            }
         }
         return out.toString();
     }
 
     // returns the upstream links
-    // returns an empty set if id does not have upstreamLinks
+    // returns an empty set if id does not have upstreamLinks. The set
+    // is a read-only view that follows later changes to the DAG.
     // Runtime: O(1)
     public Set<String> getUpstreamLinks(String id){
-
-        Set<String> upStreams = upstreamLinks.get(id);
-
-        if(upStreams == null){
-            return new HashSet<>();
-        }
-        return upStreams;
+        return new LinkSet(id, true);
     }
 
     // returns the downstream links
-    // returns an empty set if id does not have downstreamLinks
+    // returns an empty set if id does not have downstreamLinks, see
+    // getUpstreamLinks
     // Runtime: O(1)
     public Set<String> getDownstreamLinks(String id){
+        return new LinkSet(id, false);
+    }
+
+    // Returns true if id has at least HIGH_FAN_OUT downstream links.
+    // Such links are read in place, from the sorted arrays of the frozen
+    // form or the open addressed int set of the node, and checking one
+    // link costs O(log L) or O(1); callers should test membership rather
+    // than copy them.
+    // Runtime: O(1)
+    public boolean isHighFanOut(String id){
+        Integer node = index.get(id);
+        return node != null && count(node, false) >= HIGH_FAN_OUT;
+    }
 
-        Set<String> downStreams = downstreamLinks.get(id);
+    // Read-only view of the upstream or downstream links of an id as
+    // cell IDs. The id is looked up on each use since nodes can be
+    // released and renumbered.
+    protected class LinkSet extends AbstractSet<String>{
+        protected String id;
+        protected boolean upstream;
+
+        protected LinkSet(String id, boolean upstream){
+            this.id = id;
+            this.upstream = upstream;
+        }
 
-        if (downStreams == null){
-            return new HashSet<>();
+        @Override public int size(){
+            Integer node = index.get(id);
+            return node == null ? 0 : count(node, upstream);
         }
 
-        return downStreams;
+        @Override public boolean contains(Object other){
+            Integer node = index.get(id);
+            Integer link = index.get(other);
+            return node != null && link != null && (upstream ? hasLink(link, node) : hasLink(node, link));
+        }
+
+        @Override public Iterator<String> iterator(){
+            Integer node = index.get(id);
+            final Links links = new Links();
+            if (node != null){
+                links.of(node, upstream);
+            }
+            return new Iterator<String>(){
+                int next = links.next();
+                public boolean hasNext(){
+                    return next >= 0;
+                }
+                public String next(){
+                    if (!hasNext()){
+                        throw new NoSuchElementException();
+                    }
+                    String id = names.get(next);
+                    next = links.next();
+                    return id;
+                }
+            };
+        }
     }
 
-    // Class representing a cycle that is detected on adding to the DAG
-    public static class CycleException extends RuntimeException{
+    // Iterates the links of one node: the frozen links that were not
+    // removed, then the links added since. A search reuses one Links
+    // for every node it visits:
+    //   links.of(node, upstream);
+    //   for (int next = links.next(); next >= 0; next = links.next())
+    protected class Links{
+        protected int[] edges;
+        protected int at, end, slot;
+        protected IntSet removed, added;
 
-        // Construct an exception with the given error message
-        public CycleException(String msg){
-            super(msg);
+        protected Links of(int node, boolean upstream){
+            at = end = slot = 0;
+            if (frozen != null && node < frozen.nodes){
+                int[] offsets = upstream ? frozen.upOffsets : frozen.downOffsets;
+                edges = upstream ? frozen.upEdges : frozen.downEdges;
+                at = offsets[node];
+                end = offsets[node + 1];
+            }
+            removed = upstream ? upstreamRemoved[node] : downstreamRemoved[node];
+            added = upstream ? upstreamLinks[node] : downstreamLinks[node];
+            return this;
         }
 
+        // returns the next linked node, or -1 if there are no more
+        protected int next(){
+            while (at < end){
+                int link = edges[at++];
+                if (removed == null || !removed.contains(link)){
+                    return link;
+                }
+            }
+            if (added != null){
+                slot = added.next(slot);
+                if (slot < added.table.length){
+                    return added.table[slot++];
+                }
+            }
+            return -1;
+        }
     }
 
-    // adds a new id into the DAG
-    // runtime complexity is generally  O(P + D) (see case 3)
-    // P: longest path in DAG starting from id
-    // D ( worst case ):  size of downstream links
-    // However, runtime changes on a case-by-case basis
-    public void add(String id, Set<String> upstreamIDs){
+    // Compressed sparse row form of the links built by freeze: the links
+    // of node n in each direction are edges[offsets[n]] up to but not
+    // including edges[offsets[n + 1]], sorted. A search scans them in
+    // order from two arrays rather than hopping between hash sets.
+    protected static class Frozen{
+        protected int nodes, links;
+        protected int[] upOffsets, upEdges, downOffsets, downEdges;
 
-        // case 1 : upstreamIds is an empty set
-        // remove id from DAG
-        // Runtime: O(D)
-        // D : number of downstramLinks in DAG
-        if (upstreamIDs.isEmpty()){
-            upstreamLinks.remove(id);
-            Set<String> downs = downstreamLinks.keySet();
-            for (String s : downs){
-                removeFromDownstream(id, s);
+        // returns true if node has a frozen link to other
+        // Runtime: O(log L) --> L: links of node
+        protected boolean has(int node, int other, boolean upstream){
+            if (node >= nodes){
+                return false;
             }
-            return;
+            int[] offsets = upstream ? upOffsets : downOffsets;
+            int[] edges = upstream ? upEdges : downEdges;
+            return offsets[node] < offsets[node + 1]
+                && Arrays.binarySearch(edges, offsets[node], offsets[node + 1], other) >= 0;
         }
 
-        // case 2 : upstreamLinks is empty
-        // this is the first add in a dag
-        // Runtime: O(Up) --> Up : size if upstreamIDs
-        // this is determined by the while loop that iterates
-        // through each upstream ID
-        if (upstreamLinks.isEmpty()) {
-            upstreamLinks.put(id, upstreamIDs);
-            String cycle = checkForCycles(id);
-            if (cycle != null){
-                upstreamLinks.remove(id);
-                throw new CycleException(cycle);
+        // returns the number of frozen links of node
+        protected int count(int node, boolean upstream){
+            if (node >= nodes){
+                return 0;
             }
-            for(String next : upstreamIDs){
-                Set<String> dep = new HashSet<>();
-                dep.add(id);
-                downstreamLinks.put(next,dep);
+            int[] offsets = upstream ? upOffsets : downOffsets;
+            return offsets[node + 1] - offsets[node];
+        }
+    }
+
+    // Downstream links of a high fan-out node sorted by their positions
+    // as of orderVersion version, see hubDependents
+    protected static class Hub{
+        protected int[] nodes;
+        protected int version;
+    }
+
+    // Set of node numbers using open addressing with linear probing.
+    // Stores links in a single int array instead of a HashSet of boxed
+    // Strings.
+    protected static class IntSet{
+        protected static final int EMPTY = -1;
+        protected int[] table;
+        protected int size;
+
+        protected IntSet(){
+            table = new int[4];
+            Arrays.fill(table, EMPTY);
+        }
+
+        protected int slot(int value, int[] table){
+            int h = value * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & (table.length - 1);
+        }
+
+        // returns true if value was not in the set
+        // Runtime: O(1) expected
+        protected boolean add(int value){
+            int i = slot(value, table);
+            while (table[i] != EMPTY){
+                if (table[i] == value){
+                    return false;
+                }
+                i = (i + 1) & (table.length - 1);
             }
-            return;
+            table[i] = value;
+            size++;
+            if (size * 4 > table.length * 3){
+                resize(table.length * 2);
+            }
+            return true;
         }
 
-        // case 3: (average case) upstreamLinks is not empty
-        // Runtime: O(P + D) --> P: longest path from newly placed id
-        // D : number of downstream links
-        // this is because the DAG is checked for any cycles starting from id
-        // and a each downstream link is checked to see if it has id in its downstream links
+        protected void resize(int length){
+            int[] old = table;
+            table = new int[length];
+            Arrays.fill(table, EMPTY);
+            for (int value : old){
+                if (value != EMPTY){
+                    int i = slot(value, table);
+                    while (table[i] != EMPTY){
+                        i = (i + 1) & (table.length - 1);
+                    }
+                    table[i] = value;
+                }
+            }
+        }
 
-        // upstream set before adding id
-        Set<String> currentDependents = upstreamLinks.get(id);
-        // new set that contains all upstream Ids, and might contain all currentDependents
-        // if current dependents is not null
-        Set<String> dependencies = new HashSet<>(); dependencies.addAll(upstreamIDs);
+        // Runtime: O(1) expected
+        protected boolean contains(int value){
+            int i = slot(value, table);
+            while (table[i] != EMPTY){
+                if (table[i] == value){
+                    return true;
+                }
+                i = (i + 1) & (table.length - 1);
+            }
+            return false;
+        }
 
-        if (currentDependents != null){
-            dependencies.addAll(currentDependents);
+        // returns true if value was in the set. Entries after the removed
+        // one are shifted back so lookups need no tombstones, and the
+        // table is halved once it is less than one eighth full.
+        // Runtime: O(1) amortized
+        protected boolean remove(int value){
+            int mask = table.length - 1;
+            int i = slot(value, table);
+            while (table[i] != value){
+                if (table[i] == EMPTY){
+                    return false;
+                }
+                i = (i + 1) & mask;
+            }
+            size--;
+            int j = i;
+            while (true){
+                j = (j + 1) & mask;
+                if (table[j] == EMPTY){
+                    break;
+                }
+                int home = slot(table[j], table);
+                // move table[j] into the hole at i unless its home slot
+                // lies cyclically in (i, j]
+                if (((j - home) & mask) >= ((j - i) & mask)){
+                    table[i] = table[j];
+                    i = j;
+                }
+            }
+            table[i] = EMPTY;
+            if (table.length > 8 && size * 8 < table.length){
+                resize(table.length / 2);
+            }
+            return true;
         }
 
+        // returns the first occupied slot at or after from, or
+        // table.length if there is none
+        protected int next(int from){
+            while (from < table.length && table[from] == EMPTY){
+                from++;
+            }
+            return from;
+        }
 
-        upstreamLinks.remove(id);
-        upstreamLinks.put(id, upstreamIDs);
+        protected int[] toArray(){
+            int[] values = new int[size];
+            int k = 0;
+            for (int value : table){
+                if (value != EMPTY){
+                    values[k++] = value;
+                }
+            }
+            return values;
+        }
+    }
 
-        // checks for cycles
-        // if a string is returned, then it has a cycle
-        // and the id is removed
-        // else the id is added to both upstream and downstream maps
-        // Runtime : O(P+D)
-        String cycle = checkForCycles(id);
-        if (cycle != null){
-            if (currentDependents == null || currentDependents.isEmpty()) {
-                upstreamLinks.remove(id);
-                throw new CycleException(cycle);
+    // Growable list of ints used as a stack and work list in searches
+    protected static class IntList{
+        protected int[] items = new int[8];
+        protected int size;
+
+        protected void add(int value){
+            if (size == items.length){
+                items = Arrays.copyOf(items, size * 2);
             }
-            upstreamLinks.remove(id);
-            upstreamLinks.put(id, currentDependents);
+            items[size++] = value;
+        }
+
+        protected int pop(){
+            return items[--size];
+        }
+    }
+
+    // Class representing a cycle that is detected on adding to the DAG
+    public static class CycleException extends RuntimeException{
 
-            throw new CycleException(cycle);
+        // Construct an exception with the given error message
+        public CycleException(String msg){
+            super(msg);
         }
 
-        // adds currentDependencies to dependencies, to
-        // lower the bounds
-        // thus it is not technically O(D), but worse case
-        // is O(D)
-        Iterator<String> iter = dependencies.iterator();
-        // checks ever dependency
-        // if dependency already exists, then
-        //   if dependency is in upStreamIds
-        //      then add id to downstreamLinks
-        //   else remove it
-        // else: create a new downstream id and make a new
-        //       set containing id in it
-        while (iter.hasNext()){
+    }
+
+    // returns the node number of id, giving it the next number if it
+    // has none yet
+    // Runtime: O(1) amortized
+    protected int intern(String id){
+        Integer node = index.get(id);
+        if (node != null){
+            return node;
+        }
+        int next;
+        if (free.size > 0){
+            next = free.pop();
+            names.set(next, id);
+        } else {
+            next = names.size();
+            names.add(id);
+        }
+        if (next == order.length){
+            int size = next * 2;
+            downstreamLinks = Arrays.copyOf(downstreamLinks, size);
+            upstreamLinks = Arrays.copyOf(upstreamLinks, size);
+            downstreamRemoved = Arrays.copyOf(downstreamRemoved, size);
+            upstreamRemoved = Arrays.copyOf(upstreamRemoved, size);
+            seen = Arrays.copyOf(seen, size);
+            reachedFrom = Arrays.copyOf(reachedFrom, size);
+            order = Arrays.copyOf(order, size);
+            Arrays.fill(order, next, size, UNORDERED);
+            level = Arrays.copyOf(level, size);
+            unionParent = Arrays.copyOf(unionParent, size);
+            unionSize = Arrays.copyOf(unionSize, size);
+        }
+        index.put(id, next);
+        maybeOrphans.add(next);
+        level[next] = 0;
+        levelCounts[0]++;
+        unionParent[next] = next;
+        unionSize[next] = 1;
+        connectedCount++;
+        return next;
+    }
 
-            String dependent = iter.next();
+    // adds a new id into the DAG, replacing its upstream links with
+    // upstreamIDs, see replaceUpstream
+    public void add(String id, Set<String> upstreamIDs){
+        replaceUpstream(id, upstreamIDs);
+    }
 
-            if (downstreamLinks.containsKey(dependent)){
-                if (upstreamIDs.contains(dependent)){
-                    downstreamLinks.get(dependent).add(id);
-                } else {
-                    Set<String> d = downstreamLinks.get(dependent);
-                    d.remove(id);
-                    if (d.isEmpty()){
-                        downstreamLinks.remove(dependent);
-                    }
+    // Replaces the upstream links of id with upstreamIDs, touching only
+    // the links that differ between the two sets. Each new link is
+    // checked against the topological order the DAG maintains (see
+    // insertLink), so the cost depends on the region between the two
+    // ends of the link rather than on the number of paths upstream of
+    // id. Giving an id the DAG has never linked no upstream links does
+    // nothing at all, so constants cost O(1). If a link would create a
+    // cycle the DAG is left unchanged and a CycleException is thrown.
+    // Runtime: O(Old + Up + R) --> Old, Up: sizes of the old and new
+    //   upstream sets, R: nodes and links in the regions reordered
+    public void replaceUpstream(String id, Set<String> upstreamIDs){
+        if (upstreamIDs.isEmpty() && !index.containsKey(id)){
+            return;
+        }
+        int node = intern(id);
+        int[] old = linkArray(node, true);
+        ensureOrdered(node, false);
+
+        // new links are inserted before the old ones are removed. Links
+        // into id cannot lie on a path leaving id, so keeping them does
+        // not cause false cycles, and removing links never invalidates
+        // the order, so undoing the insertions is enough on failure.
+        insertLinks(node, upstreamIDs);
+        if (old.length > 0){
+            IntSet keep = new IntSet();
+            for (String upID : upstreamIDs){
+                keep.add(index.get(upID));
+            }
+            for (int up : old){
+                if (!keep.contains(up)){
+                    removeLink(up, node);
                 }
-            } else {
-                // create new set and add it to downstreamLinks
-                Set<String> dep = new HashSet<>();
-                dep.add(id);
-                downstreamLinks.put(dependent,dep);
             }
         }
+        tidy();
+    }
+
+    // Adds links without removing any: changes maps each id to upstream
+    // ids it should gain. Links that already exist are ignored. If a
+    // cycle is introduced every link added is removed again and a
+    // CycleException is thrown.
+    // Runtime: O(L + R) --> L: links given
+    //                       R: nodes and links in the regions reordered
+    public void addEdges(Map<String, Set<String>> changes){
+        orderNewNodes(changes);
+        List<Map.Entry<Integer, IntList>> done = new ArrayList<>();
+        try {
+            for (Map.Entry<String, Set<String>> change : changes.entrySet()){
+                int node = intern(change.getKey());
+                done.add(new AbstractMap.SimpleEntry<>(node, insertLinks(node, change.getValue())));
+            }
+        } catch (CycleException e){
+            for (Map.Entry<Integer, IntList> undo : done){
+                IntList inserted = undo.getValue();
+                while (inserted.size > 0){
+                    removeLink(inserted.pop(), undo.getKey());
+                }
+            }
+            throw e;
+        }
+        tidy();
+    }
+
+    // Removes links: changes maps each id to upstream ids it should
+    // lose. Links that do not exist are ignored.
+    // Runtime: O(L) --> L: links given
+    public void removeEdges(Map<String, Set<String>> changes){
+        for (Map.Entry<String, Set<String>> change : changes.entrySet()){
+            Integer node = index.get(change.getKey());
+            if (node == null){
+                continue;
+            }
+            for (String upID : change.getValue()){
+                Integer up = index.get(upID);
+                if (up != null && hasLink(up, node)){
+                    removeLink(up, node);
+                }
+            }
+        }
+        tidy();
+    }
+
+    // Helper that links node to each of upstreamIDs it is not linked to
+    // yet and returns the upstream nodes that were linked. If a link
+    // would close a cycle the links just added are removed and a
+    // CycleException is thrown.
+    // Runtime: O(Up + R), see replaceUpstream
+    protected IntList insertLinks(int node, Set<String> upstreamIDs){
+        IntList inserted = new IntList();
+        for (String upID : upstreamIDs){
+            int up = intern(upID);
+            if (hasLink(up, node)){
+                continue;
+            }
+            String cycle = linkOrCycle(up, node);
+            if (cycle != null){
+                while (inserted.size > 0){
+                    removeLink(inserted.pop(), node);
+                }
+                throw new CycleException(cycle);
+            }
+            inserted.add(up);
+        }
+        return inserted;
+    }
+
+    // returns true if down has a link to up
+    // Runtime: O(log L) --> L: frozen upstream links of down
+    protected boolean hasLink(int up, int down){
+        if (upstreamLinks[down] != null && upstreamLinks[down].contains(up)){
+            return true;
+        }
+        return frozen != null && frozen.has(down, up, true)
+            && (upstreamRemoved[down] == null || !upstreamRemoved[down].contains(up));
+    }
+
+    // returns the number of upstream or downstream links of node
+    // Runtime: O(1)
+    protected int count(int node, boolean upstream){
+        IntSet added = upstream ? upstreamLinks[node] : downstreamLinks[node];
+        IntSet removed = upstream ? upstreamRemoved[node] : downstreamRemoved[node];
+        int count = frozen == null ? 0 : frozen.count(node, upstream);
+        return count + (added == null ? 0 : added.size) - (removed == null ? 0 : removed.size);
     }
 
+    // returns the upstream or downstream links of node in a new array
+    // Runtime: O(L) --> L: number of links of node
+    protected int[] linkArray(int node, boolean upstream){
+        int[] links = new int[count(node, upstream)];
+        Links iter = new Links().of(node, upstream);
+        for (int i = 0; i < links.length; i++){
+            links[i] = iter.next();
+        }
+        return links;
+    }
 
     // Helper method which checks for cyclic dependencies starting at
     // the id given.  Uses the static checkForCyles helper method below.
@@ -210,12 +673,25 @@ public class DAG{
     // If no cycle is found, return null.
     protected String checkForCycles(String id){
         List<String> path = new ArrayList<String>(Arrays.asList(id));
-        if(checkForCycles(upstreamLinks, path)){
+        if(checkForCycles(upstreamMap(), path)){
             return path.toString();
         }
         return null;
     }
 
+    // returns the upstream links of every node with any, as a map from
+    // id to a view of its links
+    // Runtime: O(N)
+    public Map<String, Set<String>> upstreamMap(){
+        Map<String, Set<String>> links = new HashMap<>();
+        for (int node = 0; node < names.size(); node++){
+            if (count(node, true) > 0){
+                links.put(names.get(node), new LinkSet(names.get(node), true));
+            }
+        }
+        return links;
+    }
+
     // recursive helper method is used to check for cycles in DAG
     // uses depth first search algorithm, which is O(P) --> P: longest path from id
     // returns true if cycle is found and false if no cycle is found
@@ -244,28 +720,1285 @@ public class DAG{
         return false;
     }
 
-    // removes a given id from both hash maps
-    // removes id from all downstream links wich makes
-    // runtime: O(L_i)
-    public void remove(String id){
-        if (upstreamLinks.get(id) == null || upstreamLinks.get(id).isEmpty()){
+    // Replaces the upstream links of several ids at once. changes maps
+    // each id to its new set of upstream ids (an empty set removes its
+    // upstream links). Links that are dropped are removed first and the
+    // new links are then inserted, each checked against the maintained
+    // topological order. If a cycle is introduced every change is undone
+    // and a CycleException is thrown.
+    //
+    // When cycles are allowed and the changes touch a large part of the
+    // DAG (a bulk load), the links are stored without any checks and the
+    // order and the cycles are found afterwards in one linear pass (see
+    // findComponents) instead.
+    // Runtime: O(L + R) --> L: links added or removed
+    //                       R: nodes and links in the regions reordered
+    public void addAll(Map<String, Set<String>> changes){
+        if (allowCycles && changes.size() * BULK_FRACTION >= index.size()){
+            cyclic = true;
+            stale = true;
+        }
+        if (!cyclic){
+            orderNewNodes(changes);
+        }
+        IntList removed = new IntList();
+        for (Map.Entry<String, Set<String>> change : changes.entrySet()){
+            int node = intern(change.getKey());
+            if (count(node, true) == 0){
+                continue;
+            }
+            IntSet keep = new IntSet();
+            for (String upID : change.getValue()){
+                keep.add(intern(upID));
+            }
+            for (int up : linkArray(node, true)){
+                if (!keep.contains(up)){
+                    removeLink(up, node);
+                    removed.add(up);
+                    removed.add(node);
+                }
+            }
+        }
+
+        IntList inserted = new IntList();
+        for (Map.Entry<String, Set<String>> change : changes.entrySet()){
+            int node = intern(change.getKey());
+            for (String upID : change.getValue()){
+                int up = intern(upID);
+                if (hasLink(up, node)){
+                    continue;
+                }
+                String cycle = linkOrCycle(up, node);
+                if (cycle != null){
+                    for (int i = 0; i < inserted.size; i += 2){
+                        removeLink(inserted.items[i], inserted.items[i + 1]);
+                    }
+                    // the original graph was acyclic so these cannot fail
+                    for (int i = 0; i < removed.size; i += 2){
+                        insertLink(removed.items[i], removed.items[i + 1]);
+                    }
+                    throw new CycleException(cycle);
+                }
+                inserted.add(up);
+                inserted.add(node);
+            }
+        }
+        tidy();
+    }
+
+    // Helper for addAll that places the changed ids which have no
+    // position yet after every ordered node, upstream ones first, so
+    // that links among them never need a reorder when inserted.
+    // Runtime: O(N + L) --> N: new ids, L: their upstream links
+    protected void orderNewNodes(Map<String, Set<String>> changes){
+        Set<String> visited = new HashSet<>();
+        Deque<String> nodes = new ArrayDeque<>();
+        Deque<Iterator<String>> links = new ArrayDeque<>();
+        for (String start : changes.keySet()){
+            if (isOrdered(start) || !visited.add(start)){
+                continue;
+            }
+            nodes.push(start);
+            links.push(changes.get(start).iterator());
+            while (!nodes.isEmpty()){
+                Iterator<String> iter = links.peek();
+                if (iter.hasNext()){
+                    String next = iter.next();
+                    if (changes.containsKey(next) && !isOrdered(next) && visited.add(next)){
+                        nodes.push(next);
+                        links.push(changes.get(next).iterator());
+                    }
+                } else {
+                    links.pop();
+                    ensureOrdered(intern(nodes.pop()), false);
+                }
+            }
+        }
+    }
+
+    // returns true if id has a position in the topological order
+    protected boolean isOrdered(String id){
+        Integer node = index.get(id);
+        return node != null && order[node] != UNORDERED;
+    }
+
+    // Helper that gives node a position in the topological order if it
+    // does not have one yet. A node without links can go anywhere:
+    // nodes first seen as an upstream link are placed before every other
+    // node and all others after, so new links rarely need a reorder.
+    // Runtime: O(1)
+    protected void ensureOrdered(int node, boolean upstream){
+        if (order[node] == UNORDERED){
+            order[node] = upstream ? nextLow-- : nextHigh++;
+        }
+    }
+
+    // Helper that inserts the link up -> down with insertLink and returns
+    // its result. When cycles are allowed a link that closes a cycle is
+    // kept and null is returned. Once the DAG has a cycle links are
+    // stored without reordering: a link that agrees with the order keeps
+    // it valid (it cannot join two components into a cycle), any other
+    // marks the order stale.
+    // Runtime: O(R) as insertLink, O(1) while the DAG has cycles
+    protected String linkOrCycle(int up, int down){
+        if (cyclic){
+            ensureOrdered(up, true);
+            ensureOrdered(down, false);
+            if (order[up] >= order[down]){
+                stale = true;
+            }
+            storeLink(up, down, true);
+            return null;
+        }
+        String cycle = insertLink(up, down);
+        if (cycle != null && allowCycles){
+            storeLink(up, down, true);
+            cyclic = true;
+            stale = true;
+            return null;
+        }
+        return cycle;
+    }
+
+    // Inserts the link up -> down (down depends on up) and keeps the
+    // topological order valid using the Pearce-Kelly algorithm: if up
+    // is already ordered before down nothing else is needed. Otherwise
+    // the nodes downstream of down and the nodes upstream of up that
+    // lie between the two positions are found and reordered so that the
+    // upstream group comes first, reusing the same positions. Reaching
+    // up from down means the link would close a cycle; the link is not
+    // inserted and the cycle, written from down along upstream links as
+    // checkForCycles does, is returned. Returns null if the link was
+    // inserted.
+    // Runtime: O(R) --> R: nodes and links between the two positions
+    protected String insertLink(int up, int down){
+        ensureOrdered(up, true);
+        ensureOrdered(down, false);
+        int lower = order[down];
+        int upper = order[up];
+
+        if (up == down){
+            return Arrays.asList(names.get(down), names.get(up)).toString();
+        }
+
+        if (upper > lower){
+            // forward search from down, remembering how each node was
+            // reached; nodes are marked with the current epoch
+            IntList forward = new IntList();
+            IntList stack = new IntList();
+            Links links = new Links();
+            int mark = ++epoch;
+            seen[down] = mark;
+            stack.add(down);
+            while (stack.size > 0){
+                int node = stack.pop();
+                forward.add(node);
+                links.of(node, false);
+                for (int next = links.next(); next >= 0; next = links.next()){
+                    if (next == up){
+                        List<String> cycle = new ArrayList<>();
+                        cycle.add(names.get(down));
+                        cycle.add(names.get(up));
+                        for (int at = node; at != down; at = reachedFrom[at]){
+                            cycle.add(names.get(at));
+                        }
+                        cycle.add(names.get(down));
+                        return cycle.toString();
+                    }
+                    if (order[next] < upper && seen[next] != mark){
+                        seen[next] = mark;
+                        reachedFrom[next] = node;
+                        stack.add(next);
+                    }
+                }
+            }
+
+            // backward search from up
+            IntList backward = new IntList();
+            mark = ++epoch;
+            seen[up] = mark;
+            stack.add(up);
+            while (stack.size > 0){
+                int node = stack.pop();
+                backward.add(node);
+                links.of(node, true);
+                for (int next = links.next(); next >= 0; next = links.next()){
+                    if (order[next] > lower && seen[next] != mark){
+                        seen[next] = mark;
+                        stack.add(next);
+                    }
+                }
+            }
+
+            reorder(backward, forward);
+        }
+
+        storeLink(up, down, true);
+        return null;
+    }
+
+    // Helper for insertLink: gives the nodes of backward followed by the
+    // nodes of forward the positions the two groups currently occupy,
+    // keeping the relative order within each group
+    // Runtime: O(K log K) --> K: number of nodes reordered
+    protected void reorder(IntList backward, IntList forward){
+        long[] back = byOrder(backward);
+        long[] front = byOrder(forward);
+        int[] positions = new int[back.length + front.length];
+        int i = 0;
+        for (long entry : back){
+            positions[i++] = (int) (entry >> 32);
+        }
+        for (long entry : front){
+            positions[i++] = (int) (entry >> 32);
+        }
+        Arrays.sort(positions);
+
+        i = 0;
+        for (long entry : back){
+            order[(int) entry] = positions[i++];
+        }
+        for (long entry : front){
+            order[(int) entry] = positions[i++];
+        }
+        orderVersion++;
+    }
+
+    // Helper that packs each node with its position, position in the
+    // high bits, and sorts them by position
+    protected long[] byOrder(IntList nodes){
+        long[] packed = new long[nodes.size];
+        for (int i = 0; i < nodes.size; i++){
+            int node = nodes.items[i];
+            packed[i] = ((long) order[node] << 32) | node;
+        }
+        Arrays.sort(packed);
+        return packed;
+    }
+
+    // Helper that removes the link up -> down. Removing links never
+    // invalidates the order.
+    // Runtime: O(log L) --> L: frozen links of up and down
+    protected void removeLink(int up, int down){
+        if (cyclic && circular.get(up) && circular.get(down)){
+            // a cycle may be broken
+            stale = true;
+        }
+        storeLink(up, down, false);
+        maybeOrphans.add(up);
+        maybeOrphans.add(down);
+    }
+
+    // Helper that adds or removes the link up -> down in both directions.
+    // For a link in the frozen form this undoes or records its removal,
+    // otherwise the link is added to or removed from the links added
+    // since the freeze. Sets that become empty are dropped.
+    protected void storeLink(int up, int down, boolean add){
+        invalidateClosures(up, down);
+        if (!hubs.isEmpty()){
+            hubs.remove(up);
+        }
+        if (!levelsStale){
+            levelSeeds.add(down);
+            if (levelSeeds.size * BULK_FRACTION > Math.max(index.size(), COMPACT_MIN)){
+                // too many to be worth a heap; recompute all instead
+                levelsStale = true;
+                levelSeeds = new IntList();
+            }
+        }
+        if (!add){
+            unionStale = true;
+        } else if (!unionStale){
+            union(up, down);
+        }
+        deltaLinks += storeLink(upstreamLinks, upstreamRemoved, down, up, true, add);
+        storeLink(downstreamLinks, downstreamRemoved, up, down, false, add);
+    }
+
+    // Helper for storeLink handling one direction; returns the change in
+    // the number of links that differ from the frozen form
+    protected int storeLink(IntSet[] added, IntSet[] removed, int node, int link,
+                            boolean upstream, boolean add){
+        boolean isFrozen = frozen != null && frozen.has(node, link, upstream);
+        IntSet[] sets = isFrozen ? removed : added;
+        if (add != isFrozen){
+            if (sets[node] == null){
+                sets[node] = new IntSet();
+            }
+            return sets[node].add(link) ? 1 : 0;
+        }
+        if (sets[node] != null && sets[node].remove(link)){
+            if (sets[node].size == 0){
+                sets[node] = null;
+            }
+            return -1;
+        }
+        return 0;
+    }
+
+    // Rebuilds the frozen form from all current links and clears the
+    // changes kept since the last freeze. Searches then scan each node's
+    // links sequentially from two int arrays per direction. Later edits
+    // go to small per-node sets on top of the frozen form and are merged
+    // back automatically once they grow large (see MERGE_FRACTION).
+    // Runtime: O(N + L log L) --> N: nodes, L: links
+    public void freeze(){
+        int nodes = names.size();
+        Frozen next = new Frozen();
+        next.nodes = nodes;
+        next.upOffsets = new int[nodes + 1];
+        next.downOffsets = new int[nodes + 1];
+        for (int node = 0; node < nodes; node++){
+            next.upOffsets[node + 1] = next.upOffsets[node] + count(node, true);
+            next.downOffsets[node + 1] = next.downOffsets[node] + count(node, false);
+        }
+        next.links = next.upOffsets[nodes];
+        next.upEdges = new int[next.links];
+        next.downEdges = new int[next.links];
+        Links links = new Links();
+        for (int node = 0; node < nodes; node++){
+            int at = next.upOffsets[node];
+            links.of(node, true);
+            for (int link = links.next(); link >= 0; link = links.next()){
+                next.upEdges[at++] = link;
+            }
+            Arrays.sort(next.upEdges, next.upOffsets[node], at);
+            at = next.downOffsets[node];
+            links.of(node, false);
+            for (int link = links.next(); link >= 0; link = links.next()){
+                next.downEdges[at++] = link;
+            }
+            Arrays.sort(next.downEdges, next.downOffsets[node], at);
+        }
+
+        frozen = next;
+        Arrays.fill(upstreamLinks, null);
+        Arrays.fill(downstreamLinks, null);
+        Arrays.fill(upstreamRemoved, null);
+        Arrays.fill(downstreamRemoved, null);
+        deltaLinks = 0;
+
+        // nodes whose last links were frozen ones can be released now
+        for (int node = 0; node < nodes; node++){
+            if (names.get(node) != null && next.count(node, true) == 0 && next.count(node, false) == 0){
+                maybeOrphans.add(node);
+            }
+        }
+        collectOrphans();
+    }
+
+    // Memory held by the DAG: live nodes and links, node numbers free
+    // for reuse, and an estimate of the bytes retained by its tables
+    // (cell ID strings are shared with the sheet and not counted)
+    public static class Footprint{
+        public int nodes;
+        public int links;
+        public int freeNodes;
+        public long bytes;
+
+        @Override public String toString(){
+            return String.format("%d nodes, %d links, %d free, ~%d KB", nodes, links, freeNodes, bytes / 1024);
+        }
+    }
+
+    // returns the current footprint, see Footprint
+    // Runtime: O(N + C) --> N: node numbers in use, C: cached closures
+    public Footprint footprint(){
+        Footprint footprint = new Footprint();
+        footprint.nodes = index.size();
+        footprint.freeNodes = free.size;
+        // per-node arrays, the index entries and the names list
+        long bytes = 7L * 4 * order.length + 48L * index.size() + 4L * names.size();
+        for (IntSet[] sets : Arrays.asList(upstreamLinks, downstreamLinks, upstreamRemoved, downstreamRemoved)){
+            for (int node = 0; node < names.size(); node++){
+                if (sets[node] != null){
+                    bytes += 32 + 4L * sets[node].table.length;
+                }
+            }
+        }
+        for (int node = 0; node < names.size(); node++){
+            footprint.links += count(node, true);
+        }
+        if (frozen != null){
+            bytes += 8L * (frozen.nodes + 1) + 8L * frozen.links;
+        }
+        for (BitSet closure : upstreamClosures.values()){
+            bytes += closure.size() / 8;
+        }
+        for (BitSet closure : downstreamClosures.values()){
+            bytes += closure.size() / 8;
+        }
+        footprint.bytes = bytes;
+        return footprint;
+    }
+
+    // returns true if the DAG has been frozen, see freeze
+    public boolean isFrozen(){
+        return frozen != null;
+    }
+
+    // Helper run at the end of each change: releases nodes left without
+    // links, compacts the tables if they have become mostly empty, and
+    // merges the changes since the last freeze back into the frozen form
+    // once they are large enough to slow down searches
+    protected void tidy(){
+        collectOrphans();
+        if (names.size() > COMPACT_MIN && index.size() * COMPACT_FRACTION < names.size()){
+            compact();
+        }
+        if (frozen != null && deltaLinks > Math.max(MIN_DELTA, frozen.links / MERGE_FRACTION)){
+            freeze();
+        }
+    }
+
+    // Releases the nodes noted in maybeOrphans that have no links, so
+    // ids of cells that are gone do not accumulate. A node whose links
+    // are only removed from the frozen form is kept until the next
+    // freeze.
+    // Runtime: O(K) --> K: nodes noted
+    protected void collectOrphans(){
+        while (maybeOrphans.size > 0){
+            int node = maybeOrphans.pop();
+            String id = names.get(node);
+            if (id == null || count(node, true) > 0 || count(node, false) > 0){
+                continue;
+            }
+            if (frozen != null && (frozen.count(node, true) > 0 || frozen.count(node, false) > 0)){
+                continue;
+            }
+            index.remove(id);
+            names.set(node, null);
+            order[node] = UNORDERED;
+            setLevel(node, -1);
+            connectedCount--;
+            upstreamClosures.remove(node);
+            downstreamClosures.remove(node);
+            free.add(node);
+        }
+    }
+
+    // Renumbers the live nodes densely and rebuilds every table at the
+    // size they need now, keeping the order. Called automatically when
+    // most node numbers are free; views from getUpstreamLinks and
+    // getDownstreamLinks stay valid.
+    // Runtime: O(N + L) --> N: node numbers in use, L: links
+    public void compact(){
+        int used = names.size();
+        int[] renumber = new int[used];
+        ArrayList<String> live = new ArrayList<>(index.size());
+        for (int node = 0; node < used; node++){
+            if (names.get(node) != null){
+                renumber[node] = live.size();
+                live.add(names.get(node));
+            }
+        }
+        IntList links = new IntList();
+        Links iter = new Links();
+        for (int node = 0; node < used; node++){
+            if (names.get(node) == null){
+                continue;
+            }
+            iter.of(node, true);
+            for (int up = iter.next(); up >= 0; up = iter.next()){
+                links.add(renumber[up]);
+                links.add(renumber[node]);
+            }
+        }
+        int[] oldOrder = order;
+        ArrayList<String> oldNames = names;
+        boolean wasFrozen = frozen != null;
+        hubs.clear();
+
+        int size = Math.max(16, Integer.highestOneBit(live.size()) * 2);
+        index = new HashMap<String, Integer>();
+        names = live;
+        free = new IntList();
+        maybeOrphans = new IntList();
+        downstreamLinks = new IntSet[size];
+        upstreamLinks = new IntSet[size];
+        downstreamRemoved = new IntSet[size];
+        upstreamRemoved = new IntSet[size];
+        seen = new int[size];
+        reachedFrom = new int[size];
+        order = new int[size];
+        Arrays.fill(order, UNORDERED);
+        // every node starts at level 0 again until a full update
+        level = new int[size];
+        levelCounts = new int[16];
+        levelCounts[0] = live.size();
+        maxLevel = 0;
+        levelSeeds = new IntList();
+        levelsStale = true;
+        unionParent = new int[size];
+        unionSize = new int[size];
+        unionStale = true;
+        for (int node = 0; node < used; node++){
+            if (oldNames.get(node) != null){
+                order[renumber[node]] = oldOrder[node];
+                index.put(oldNames.get(node), renumber[node]);
+            }
+        }
+        frozen = null;
+        deltaLinks = 0;
+        upstreamClosures.clear();
+        downstreamClosures.clear();
+        for (int i = 0; i < links.size; i += 2){
+            storeLink(links.items[i], links.items[i + 1], true);
+        }
+        if (cyclic){
+            stale = true;
+        }
+        if (wasFrozen){
+            freeze();
+        }
+    }
+
+    // returns the given ids and every id downstream of them, ordered so
+    // that each id comes after all of its upstream links. Ids with no
+    // links come first. The downstream links of a high fan-out node are
+    // kept sorted between calls (see hubDependents), so only the rest of
+    // the cone is sorted and the runs are merged.
+    // Runtime: O(C log C + E) --> C: ids returned, E: links between them
+    //   O(C + E + R log R) once high fan-out nodes are cached
+    //   R: ids not downstream links of a high fan-out node
+    public List<String> downstreamCone(Collection<String> ids){
+        refresh();
+        List<String> cone = new ArrayList<>();
+        Set<String> unlinked = new HashSet<>();
+        IntList nodes = new IntList();
+        // runs of the cone sorted by position: one per high fan-out node
+        // reached, and last the other nodes once sorted
+        List<long[]> runs = new ArrayList<>();
+        IntList stack = new IntList();
+        Links links = new Links();
+        int mark = ++epoch;
+        for (String id : ids){
+            Integer start = index.get(id);
+            if (start == null){
+                if (unlinked.add(id)){
+                    cone.add(id);
+                }
+                continue;
+            }
+            if (seen[start] == mark){
+                continue;
+            }
+            seen[start] = mark;
+            stack.add(start);
+            while (stack.size > 0){
+                int node = stack.pop();
+                if (node < 0){
+                    // already in the run of a high fan-out node
+                    node = ~node;
+                } else {
+                    nodes.add(node);
+                }
+                if (count(node, false) >= HIGH_FAN_OUT){
+                    runs.add(hubRun(node, mark, stack));
+                    continue;
+                }
+                links.of(node, false);
+                for (int next = links.next(); next >= 0; next = links.next()){
+                    if (seen[next] != mark){
+                        seen[next] = mark;
+                        stack.add(next);
+                    }
+                }
+            }
+        }
+        runs.add(byOrder(nodes));
+        for (long entry : mergeRuns(runs)){
+            cone.add(names.get((int) entry));
+        }
+        return cone;
+    }
+
+    // Helper for downstreamCone that takes the downstream links of the
+    // high fan-out node not seen yet as one run, packed as byOrder does
+    // and already in order. Those with downstream links of their own
+    // are stacked as ~node, to be searched without being added again.
+    // Runtime: O(D) once the node is cached --> D: its downstream links
+    protected long[] hubRun(int node, int mark, IntList stack){
+        int[] dependents = hubDependents(node);
+        long[] run = new long[dependents.length];
+        int size = 0;
+        for (int down : dependents){
+            if (seen[down] == mark){
+                continue;
+            }
+            seen[down] = mark;
+            run[size++] = ((long) order[down] << 32) | down;
+            if (count(down, false) > 0){
+                stack.add(~down);
+            }
+        }
+        return size == run.length ? run : Arrays.copyOf(run, size);
+    }
+
+    // Returns the downstream links of node sorted by position, from the
+    // cache unless its links changed or positions moved since
+    // Runtime: O(1) if cached, else O(D log D) --> D: downstream links
+    protected int[] hubDependents(int node){
+        Hub hub = hubs.get(node);
+        if (hub == null){
+            hub = new Hub();
+            hub.nodes = linkArray(node, false);
+            hub.version = orderVersion - 1;
+            hubs.put(node, hub);
+        }
+        if (hub.version != orderVersion){
+            IntList nodes = new IntList();
+            nodes.items = hub.nodes;
+            nodes.size = hub.nodes.length;
+            long[] sorted = byOrder(nodes);
+            for (int i = 0; i < sorted.length; i++){
+                hub.nodes[i] = (int) sorted[i];
+            }
+            hub.version = orderVersion;
+        }
+        return hub.nodes;
+    }
+
+    // Helper that merges runs sorted by position into one, two at a
+    // time so that each entry is copied once per round
+    // Runtime: O(C log K) --> C: entries, K: runs
+    protected static long[] mergeRuns(List<long[]> runs){
+        while (runs.size() > 1){
+            List<long[]> merged = new ArrayList<>();
+            for (int i = 0; i + 1 < runs.size(); i += 2){
+                long[] a = runs.get(i), b = runs.get(i + 1);
+                long[] both = new long[a.length + b.length];
+                int x = 0, y = 0, k = 0;
+                while (x < a.length && y < b.length){
+                    both[k++] = a[x] < b[y] ? a[x++] : b[y++];
+                }
+                while (x < a.length){
+                    both[k++] = a[x++];
+                }
+                while (y < b.length){
+                    both[k++] = b[y++];
+                }
+                merged.add(both);
+            }
+            if (runs.size() % 2 == 1){
+                merged.add(runs.get(runs.size() - 1));
+            }
+            runs = merged;
+        }
+        return runs.get(0);
+    }
+
+    // Given ids in topological order, returns the level of each within
+    // them: 0 if no earlier id links to it, otherwise one more than the
+    // highest level of an earlier id linking to it. Ids in one level do
+    // not depend on each other. Works on node numbers with the search
+    // scratch arrays, so no id is hashed more than once.
+    // Runtime: O(C + E) --> C: number of ids, E: their downstream links
+    public int[] levelsWithin(List<String> ids){
+        int[] levels = new int[ids.size()];
+        int[] nodes = new int[ids.size()];
+        epoch++;
+        for (int i = 0; i < nodes.length; i++){
+            Integer node = index.get(ids.get(i));
+            nodes[i] = node == null ? -1 : node;
+            if (node != null){
+                seen[node] = epoch;
+                reachedFrom[node] = i;
+            }
+        }
+        Links links = new Links();
+        for (int i = 0; i < nodes.length; i++){
+            if (nodes[i] < 0){
+                continue;
+            }
+            links.of(nodes[i], false);
+            for (int down = links.next(); down >= 0; down = links.next()){
+                // links back to earlier ids only occur within a cycle
+                if (seen[down] == epoch && reachedFrom[down] > i){
+                    int at = reachedFrom[down];
+                    levels[at] = Math.max(levels[at], levels[i] + 1);
+                }
+            }
+        }
+        return levels;
+    }
+
+    // Returns the node numbers of every id that id depends on directly
+    // or indirectly, not including id. Use idsOf to get the ids; node
+    // numbers hold until the next change, which may release or renumber
+    // nodes (see compact). The result is cached, so repeated queries on the same cells cost a
+    // copy of the set.
+    // Runtime: O(C + E) the first time --> C: ids in the closure,
+    //   E: links between them; O(N / 64) for a cached closure
+    public BitSet transitiveUpstream(String id){
+        return closure(id, true);
+    }
+
+    // Returns the node numbers of every id that depends on id directly
+    // or indirectly, see transitiveUpstream
+    public BitSet transitiveDownstream(String id){
+        return closure(id, false);
+    }
+
+    // returns the ids of the given node numbers
+    // Runtime: O(N / 64 + K) --> K: number of nodes set
+    public List<String> idsOf(BitSet nodes){
+        List<String> ids = new ArrayList<>(nodes.cardinality());
+        for (int node = nodes.nextSetBit(0); node >= 0; node = nodes.nextSetBit(node + 1)){
+            ids.add(names.get(node));
+        }
+        return ids;
+    }
+
+    // returns the node number of id, or -1 if id has no links
+    public int nodeNumber(String id){
+        Integer node = index.get(id);
+        return node == null ? -1 : node;
+    }
+
+    // Helper for the transitive queries: a search from id that stops at
+    // nodes whose closure is already cached and takes their closure
+    // instead
+    protected BitSet closure(String id, boolean upstream){
+        Integer start = index.get(id);
+        if (start == null){
+            return new BitSet();
+        }
+        Map<Integer, BitSet> cache = upstream ? upstreamClosures : downstreamClosures;
+        BitSet closure = cache.get(start);
+        if (closure == null){
+            closure = new BitSet(names.size());
+            IntList stack = new IntList();
+            Links links = new Links();
+            stack.add(start);
+            while (stack.size > 0){
+                links.of(stack.pop(), upstream);
+                for (int next = links.next(); next >= 0; next = links.next()){
+                    if (closure.get(next)){
+                        continue;
+                    }
+                    closure.set(next);
+                    BitSet known = cache.get(next);
+                    if (known != null){
+                        closure.or(known);
+                    } else {
+                        stack.add(next);
+                    }
+                }
+            }
+            cache.put(start, closure);
+        }
+        return (BitSet) closure.clone();
+    }
+
+    // Drops the cached closures that adding or removing the link up ->
+    // down may change: the downstream closures that contain up (or
+    // belong to it) and the upstream closures that contain down (or
+    // belong to it). Any new path through the link passes through both.
+    // Runtime: O(K) --> K: number of cached closures
+    protected void invalidateClosures(final int up, final int down){
+        if (!downstreamClosures.isEmpty()){
+            downstreamClosures.entrySet().removeIf(e -> e.getKey() == up || e.getValue().get(up));
+        }
+        if (!upstreamClosures.isEmpty()){
+            upstreamClosures.entrySet().removeIf(e -> e.getKey() == down || e.getValue().get(down));
+        }
+    }
+
+    // Allows or forbids cycles. When allowed, adding links that close a
+    // cycle succeeds instead of throwing a CycleException, so a bulk
+    // load with a few bad references does not fail halfway. The nodes
+    // on cycles are found with a single pass of Tarjan's algorithm the
+    // next time they or the order are needed (see isCircular). Forbidding
+    // cycles again throws a CycleException if any remain.
+    public void setAllowCycles(boolean allow){
+        if (!allow){
+            refresh();
+            if (cyclic){
+                throw new CycleException(idsOf(circular).toString());
+            }
+        }
+        allowCycles = allow;
+    }
+
+    // returns true if links closing a cycle are kept
+    public boolean isAllowCycles(){
+        return allowCycles;
+    }
+
+    // returns true if id lies on a cycle, which can only happen when
+    // cycles are allowed
+    // Runtime: O(1), or O(N + L) if links changed since the last check
+    public boolean isCircular(String id){
+        if (!cyclic){
+            return false;
+        }
+        refresh();
+        Integer node = index.get(id);
+        return node != null && circular.get(node);
+    }
+
+    // returns the ids on each cycle, grouped by strongly connected
+    // component, with components in topological order
+    // Runtime: O(N + L) if links changed since the last call, else O(C)
+    public List<List<String>> circularComponents(){
+        refresh();
+        List<List<String>> ids = new ArrayList<>();
+        for (int[] component : components){
+            List<String> members = new ArrayList<>();
+            for (int node : component){
+                members.add(names.get(node));
+            }
+            ids.add(members);
+        }
+        return ids;
+    }
+
+    // returns the ids on the same cycles as id (id included) in the order
+    // the DAG keeps, or an empty list if id is not circular
+    // Runtime: O(C) --> C: size of the component
+    public List<String> circularComponent(String id){
+        List<String> members = new ArrayList<>();
+        if (isCircular(id)){
+            for (int node : componentOf.get(index.get(id))){
+                members.add(names.get(node));
+            }
+        }
+        return members;
+    }
+
+    // returns the given ids ordered so that each comes after all of its
+    // upstream links among them, ids with no links first. With cycles,
+    // the ids of each component end up next to each other.
+    // Runtime: O(K log K) --> K: number of ids
+    public List<String> inTopologicalOrder(Collection<String> ids){
+        refresh();
+        List<String> sorted = new ArrayList<>();
+        IntList nodes = new IntList();
+        for (String id : ids){
+            Integer node = index.get(id);
+            if (node == null){
+                sorted.add(id);
+            } else {
+                nodes.add(node);
+            }
+        }
+        for (long entry : byOrder(nodes)){
+            sorted.add(names.get((int) entry));
+        }
+        return sorted;
+    }
+
+    // returns true if the DAG may contain cycles
+    public boolean hasCycles(){
+        refresh();
+        return cyclic;
+    }
+
+    // Helper that recomputes the order and the circular nodes if links
+    // changed since they were last found
+    protected void refresh(){
+        if (stale){
+            findComponents();
+            stale = false;
+        }
+    }
+
+    // Finds the strongly connected components with Tarjan's algorithm in
+    // one pass over all links, kept on explicit stacks so long chains do
+    // not overflow the Java stack. Components come out downstream first,
+    // so they are given positions from the end of the order backwards:
+    // the result orders every node after its upstream links except
+    // within a component. Nodes of components with several nodes or a
+    // link to themselves are marked circular; if there are none the
+    // Pearce-Kelly updates resume.
+    // Runtime: O(N + L) --> N: nodes, L: links
+    protected void findComponents(){
+        orderVersion++;
+        int nodes = names.size();
+        int[] visit = new int[nodes];
+        int[] low = new int[nodes];
+        BitSet onStack = new BitSet(nodes);
+        IntList members = new IntList();
+        IntList path = new IntList();
+        List<Links> cursors = new ArrayList<>();
+        int visited = 0;
+        int position = nodes;
+        circular = new BitSet(nodes);
+        components = new ArrayList<>();
+        componentOf = new HashMap<>();
+
+        for (int start = 0; start < nodes; start++){
+            if (visit[start] != 0 || names.get(start) == null){
+                continue;
+            }
+            visited = enter(start, visited, visit, low, onStack, members, path, cursors);
+            while (path.size > 0){
+                int node = path.items[path.size - 1];
+                int next = cursors.get(path.size - 1).next();
+                if (next >= 0){
+                    if (visit[next] == 0){
+                        visited = enter(next, visited, visit, low, onStack, members, path, cursors);
+                    } else if (onStack.get(next)){
+                        low[node] = Math.min(low[node], visit[next]);
+                    }
+                    continue;
+                }
+
+                path.pop();
+                if (path.size > 0){
+                    int parent = path.items[path.size - 1];
+                    low[parent] = Math.min(low[parent], low[node]);
+                }
+                if (low[node] == visit[node]){
+                    int first = members.size - 1;
+                    while (members.items[first] != node){
+                        first--;
+                    }
+                    int[] component = Arrays.copyOfRange(members.items, first, members.size);
+                    members.size = first;
+                    position -= component.length;
+                    for (int i = 0; i < component.length; i++){
+                        order[component[i]] = position + i;
+                        onStack.clear(component[i]);
+                    }
+                    if (component.length > 1 || hasLink(node, node)){
+                        for (int member : component){
+                            circular.set(member);
+                            componentOf.put(member, component);
+                        }
+                        components.add(component);
+                    }
+                }
+            }
+        }
+        Collections.reverse(components);
+        nextLow = -1;
+        nextHigh = nodes;
+        cyclic = !components.isEmpty();
+    }
+
+    // Helper for findComponents that starts visiting node and returns the
+    // updated visit count
+    protected int enter(int node, int visited, int[] visit, int[] low, BitSet onStack,
+                        IntList members, IntList path, List<Links> cursors){
+        visit[node] = low[node] = ++visited;
+        members.add(node);
+        onStack.set(node);
+        if (cursors.size() == path.size){
+            cursors.add(new Links());
+        }
+        cursors.get(path.size).of(node, false);
+        path.add(node);
+        return visited;
+    }
+
+    // returns the level of id: the number of links on the longest path
+    // to it from a cell without upstream links, 0 for an id without
+    // links. Cells on a cycle share one level, one above everything
+    // upstream of the cycle.
+    // Runtime: O(1) if no links changed since the last query, see
+    //   updateLevels
+    public int level(String id){
+        updateLevels();
+        Integer node = index.get(id);
+        return node == null ? 0 : level[node];
+    }
+
+    // returns the highest level of any id, see level
+    public int maxDepth(){
+        updateLevels();
+        return maxLevel;
+    }
+
+    // returns the number of ids at each level from 0 to maxDepth(), see
+    // level; empty if the DAG has no links
+    public int[] levelHistogram(){
+        updateLevels();
+        if (index.isEmpty()){
+            return new int[0];
+        }
+        return Arrays.copyOf(levelCounts, maxLevel + 1);
+    }
+
+    // Brings the levels up to date after links changed. Starting from
+    // the nodes downstream of the changed links, nodes are visited in
+    // topological order from a heap, so each is visited at most once
+    // and only after everything upstream of it is final; the nodes
+    // downstream of a node are only visited if its level changed. When
+    // many links changed all levels are recomputed in one pass instead.
+    // Runtime: O(R log R) --> R: nodes and links whose level is checked;
+    //   O(N log N + L) for a full pass
+    protected void updateLevels(){
+        if (levelSeeds.size == 0 && !levelsStale){
+            return;
+        }
+        refresh();
+        epoch++;
+        if (levelsStale || levelSeeds.size * BULK_FRACTION >= index.size()){
+            IntList nodes = new IntList();
+            for (int node = 0; node < names.size(); node++){
+                if (names.get(node) != null){
+                    nodes.add(node);
+                }
+            }
+            for (long entry : byOrder(nodes)){
+                int node = (int) entry;
+                if (seen[node] != epoch){
+                    updateLevel(node, null);
+                }
+            }
+        } else {
+            PriorityQueue<Long> queue = new PriorityQueue<>();
+            for (int i = 0; i < levelSeeds.size; i++){
+                int node = levelSeeds.items[i];
+                if (names.get(node) != null && seen[node] != epoch){
+                    seen[node] = epoch;
+                    queue.add(((long) order[node] << 32) | node);
+                }
+            }
+            while (!queue.isEmpty()){
+                updateLevel((int) (long) queue.poll(), queue);
+            }
+        }
+        levelSeeds = new IntList();
+        levelsStale = false;
+    }
+
+    // Helper for updateLevels that recomputes the level of node, or of
+    // its whole component if it lies on a cycle, and marks them seen.
+    // If the level changed and queue is not null, the nodes downstream
+    // not yet seen are added to queue.
+    protected void updateLevel(int node, PriorityQueue<Long> queue){
+        boolean onCycle = cyclic && circular.get(node);
+        int[] members = onCycle ? componentOf.get(node) : new int[]{node};
+        int next = 0;
+        Links links = new Links();
+        for (int member : members){
+            links.of(member, true);
+            for (int up = links.next(); up >= 0; up = links.next()){
+                if (!onCycle || componentOf.get(up) != members){
+                    next = Math.max(next, level[up] + 1);
+                }
+            }
+        }
+        boolean changed = false;
+        for (int member : members){
+            seen[member] = epoch;
+            if (level[member] != next){
+                setLevel(member, next);
+                changed = true;
+            }
+        }
+        if (!changed || queue == null){
             return;
         }
+        for (int member : members){
+            links.of(member, false);
+            for (int down = links.next(); down >= 0; down = links.next()){
+                if (seen[down] != epoch){
+                    seen[down] = epoch;
+                    queue.add(((long) order[down] << 32) | down);
+                }
+            }
+        }
+    }
 
-        Set<String> up = upstreamLinks.get(id);
-        upstreamLinks.remove(id);
+    // Helper that moves node to the given level, or out of the counts
+    // if the level is -1, keeping levelCounts and maxLevel up to date
+    protected void setLevel(int node, int next){
+        levelCounts[level[node]]--;
+        if (next < 0){
+            level[node] = 0;
+        } else {
+            if (next >= levelCounts.length){
+                levelCounts = Arrays.copyOf(levelCounts, Math.max(next + 1, levelCounts.length * 2));
+            }
+            level[node] = next;
+            levelCounts[next]++;
+            maxLevel = Math.max(maxLevel, next);
+        }
+        while (maxLevel > 0 && levelCounts[maxLevel] == 0){
+            maxLevel--;
+        }
+    }
 
-        for (String link: up){
-            removeFromDownstream(id,link);
+    // returns the ids in the same weakly connected component as id,
+    // that is linked to it through any chain of references in either
+    // direction, including id itself, in topological order. Cells in
+    // different components never affect each other.
+    // Runtime: O(N log N) --> N: number of nodes
+    public List<String> connectedComponent(String id){
+        Integer node = index.get(id);
+        if (node == null){
+            return Collections.singletonList(id);
+        }
+        updateConnected();
+        IntList members = new IntList();
+        int root = findRoot(node);
+        for (int other = 0; other < names.size(); other++){
+            if (names.get(other) != null && findRoot(other) == root){
+                members.add(other);
+            }
         }
+        return idsInOrder(members);
+    }
+
+    // returns the number of ids in the weakly connected component of
+    // id, 1 for an id without links
+    // Runtime: O(1) amortized unless links were removed since the last
+    //   query, see updateConnected
+    public int connectedComponentSize(String id){
+        Integer node = index.get(id);
+        if (node == null){
+            return 1;
+        }
+        updateConnected();
+        return unionSize[findRoot(node)];
+    }
+
+    // returns true if a and b are in the same weakly connected component
+    // Runtime: O(1) amortized, see connectedComponentSize
+    public boolean isConnected(String a, String b){
+        Integer first = index.get(a);
+        Integer second = index.get(b);
+        if (first == null || second == null){
+            return a.equals(b);
+        }
+        updateConnected();
+        return findRoot(first) == findRoot(second);
+    }
 
+    // returns the number of weakly connected components of ids with
+    // links
+    public int connectedComponentCount(){
+        updateConnected();
+        return connectedCount;
     }
 
+    // returns every weakly connected component of ids with links,
+    // largest first, each in topological order; the size of a
+    // component is the size of its list
+    // Runtime: O(N log N) --> N: number of nodes
+    public List<List<String>> connectedComponents(){
+        updateConnected();
+        Map<Integer, IntList> byRoot = new HashMap<>();
+        for (int node = 0; node < names.size(); node++){
+            if (names.get(node) != null){
+                int root = findRoot(node);
+                IntList members = byRoot.get(root);
+                if (members == null){
+                    members = new IntList();
+                    byRoot.put(root, members);
+                }
+                members.add(node);
+            }
+        }
+        List<List<String>> parts = new ArrayList<>();
+        for (IntList members : byRoot.values()){
+            parts.add(idsInOrder(members));
+        }
+        Collections.sort(parts, new Comparator<List<String>>(){
+            @Override public int compare(List<String> a, List<String> b){
+                return Integer.compare(b.size(), a.size());
+            }
+        });
+        return parts;
+    }
 
-    // Helper that eliminates the downstream link from upID to downID
-    protected void removeFromDownstream(String upID, String downID){
-        if (downID == null){return;}
-        downstreamLinks.get(downID).remove(upID);
+    // Helper that returns the ids of nodes in topological order
+    protected List<String> idsInOrder(IntList nodes){
+        refresh();
+        List<String> ids = new ArrayList<>(nodes.size);
+        for (long entry : byOrder(nodes)){
+            ids.add(names.get((int) entry));
+        }
+        return ids;
+    }
+
+    // Helper that rebuilds the weakly connected components from all
+    // links if any were removed since they were last built
+    // Runtime: O(N + L) --> N: nodes, L: links
+    protected void updateConnected(){
+        if (!unionStale){
+            return;
+        }
+        connectedCount = 0;
+        for (int node = 0; node < names.size(); node++){
+            unionParent[node] = node;
+            unionSize[node] = 1;
+            if (names.get(node) != null){
+                connectedCount++;
+            }
+        }
+        Links links = new Links();
+        for (int node = 0; node < names.size(); node++){
+            links.of(node, true);
+            for (int up = links.next(); up >= 0; up = links.next()){
+                union(up, node);
+            }
+        }
+        unionStale = false;
+    }
+
+    // Helper that returns the root of node's component, halving the
+    // path to it on the way
+    protected int findRoot(int node){
+        while (unionParent[node] != node){
+            unionParent[node] = unionParent[unionParent[node]];
+            node = unionParent[node];
+        }
+        return node;
+    }
+
+    // Helper that merges the components of a and b, hanging the smaller
+    // one below the root of the larger
+    protected void union(int a, int b){
+        a = findRoot(a);
+        b = findRoot(b);
+        if (a == b){
+            return;
+        }
+        if (unionSize[a] < unionSize[b]){
+            int swap = a;
+            a = b;
+            b = swap;
+        }
+        unionParent[b] = a;
+        unionSize[a] += unionSize[b];
+        connectedCount--;
+    }
+
+    // returns every node that has appeared in the DAG, ordered so that
+    // each node comes after all of its upstream links
+    // Runtime: O(N log N) --> N: number of nodes
+    public List<String> topologicalOrder(){
+        refresh();
+        IntList ordered = new IntList();
+        for (int node = 0; node < names.size(); node++){
+            if (order[node] != UNORDERED){
+                ordered.add(node);
+            }
+        }
+        List<String> ids = new ArrayList<>(ordered.size);
+        for (long entry : byOrder(ordered)){
+            ids.add(names.get((int) entry));
+        }
+        return ids;
+    }
+
+    // removes the upstream links of a given id, which also removes id
+    // from the downstream links of each of them
+    // runtime: O(L_i)
+    public void remove(String id){
+        Integer node = index.get(id);
+        if (node == null){
+            return;
+        }
+        for (int up : linkArray(node, true)){
+            removeLink(up, node);
+        }
+        tidy();
     }
 
     // did'nt see this until after I wrote add(0
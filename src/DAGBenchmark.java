@@ -0,0 +1,139 @@
+import java.util.*;
+import java.io.*;
+
+// Benchmark of DAG.add() on a layered graph. Every node in a layer
+// depends on several random nodes of the layer before it, which gives
+// an exponential number of paths between the top and bottom layers.
+//
+// "before" times the old cycle check, a depth first search over every
+// upstream path (DAG.checkForCycles), from nodes at increasing depth
+// until one check takes longer than a second. "after" times add() with
+// the maintained topological order, for links that keep the order
+// (new formulas on top of the sheet) and for links that force a
+// reorder or close a cycle. The downstream cone that recalculation
+// walks is timed before and after freezing the DAG.
+//
+// usage: java DAGBenchmark [layers] [width] [links per node]
+// The defaults build a graph with about 1M edges; use -Xmx2g or so.
+public class DAGBenchmark{
+
+    public static String id(int layer, int i){
+        return "L" + (layer + 1) + "N" + (i + 1);
+    }
+
+    // times downstreamCone() from random nodes of the first layer
+    public static void timeCones(PrintStream o, DAG dag, String label,
+                                 int layers, int width, Random rand){
+        int trials = 20;
+        long cells = 0;
+        long start = System.nanoTime();
+        for (int t = 0; t < trials; t++){
+            cells += dag.downstreamCone(Collections.singleton(id(0, rand.nextInt(width)))).size();
+        }
+        o.printf("  %-15s %8.2f ms per cone (%d cells on average)\n", label + ":",
+                 (System.nanoTime() - start) / 1e6 / trials, cells / trials);
+    }
+
+    public static void main(String args[]){
+        PrintStream o = System.out;
+        int layers = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int width  = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int links  = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        Random rand = new Random(42);
+
+        DAG dag = new DAG();
+        long edges = 0;
+        long start = System.nanoTime();
+        for (int layer = 1; layer < layers; layer++){
+            for (int i = 0; i < width; i++){
+                Set<String> ups = new HashSet<>();
+                while (ups.size() < links){
+                    ups.add(id(layer - 1, rand.nextInt(width)));
+                }
+                dag.add(id(layer, i), ups);
+                edges += ups.size();
+            }
+        }
+        double buildMs = (System.nanoTime() - start) / 1e6;
+        o.printf("Built %d layers x %d nodes, %d edges in %.0f ms (%.2f us per add)\n",
+                 layers, width, edges, buildMs, buildMs * 1000 / ((layers - 1) * width));
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        o.printf("Heap in use: %.0f MB (%.0f bytes per edge)\n",
+                 (runtime.totalMemory() - runtime.freeMemory()) / 1e6,
+                 (double) (runtime.totalMemory() - runtime.freeMemory()) / edges);
+
+        o.println("\nBefore: full path search cycle check");
+        for (int layer = 1; layer < layers; layer++){
+            List<String> path = new ArrayList<>(Arrays.asList(id(layer, 0)));
+            long t = System.nanoTime();
+            DAG.checkForCycles(dag.upstreamMap(), path);
+            double ms = (System.nanoTime() - t) / 1e6;
+            o.printf("  depth %3d: %10.3f ms\n", layer, ms);
+            if (ms > 1000){
+                o.printf("  stopping: deeper checks take exponentially longer\n");
+                break;
+            }
+        }
+
+        o.println("\nDownstream cone of a top node, as used by recalculation");
+        timeCones(o, dag, "hash set links", layers, width, rand);
+        dag.freeze();
+        timeCones(o, dag, "frozen links", layers, width, rand);
+
+        o.println("\nTransitive dependents of a top node");
+        String top = id(0, 0);
+        long t0 = System.nanoTime();
+        int size = dag.transitiveDownstream(top).cardinality();
+        long t1 = System.nanoTime();
+        dag.transitiveDownstream(top);
+        long t2 = System.nanoTime();
+        o.printf("  first query: %8.2f ms, cached: %6.2f ms (%d ids)\n",
+                 (t1 - t0) / 1e6, (t2 - t1) / 1e6, size);
+
+        o.println("\nLevels (longest upstream path) of every node");
+        t0 = System.nanoTime();
+        int depth = dag.maxDepth();
+        t1 = System.nanoTime();
+        int edits = 1000;
+        for (int t = 0; t < edits; t++){
+            String id = id(layers - 1, rand.nextInt(width));
+            dag.add(id, Collections.singleton(id(rand.nextInt(layers - 1), rand.nextInt(width))));
+            dag.level(id);
+        }
+        t2 = System.nanoTime();
+        o.printf("  full pass: %8.2f ms (max depth %d), after an edit: %6.2f us\n",
+                 (t1 - t0) / 1e6, depth, (t2 - t1) / 1e3 / edits);
+
+        int trials = 10000;
+        o.println("\nAfter: add() with a maintained topological order");
+
+        start = System.nanoTime();
+        for (int t = 0; t < trials; t++){
+            Set<String> ups = new HashSet<>();
+            while (ups.size() < links){
+                ups.add(id(rand.nextInt(layers), rand.nextInt(width)));
+            }
+            dag.add("TOP" + (t + 1), ups);
+        }
+        o.printf("  new formula on top:     %8.2f us per add\n",
+                 (System.nanoTime() - start) / 1e3 / trials);
+
+        int cycles = 0;
+        start = System.nanoTime();
+        for (int t = 0; t < trials; t++){
+            int layer = rand.nextInt(layers - 1);
+            String id = id(layer, rand.nextInt(width));
+            Set<String> ups = new HashSet<>(dag.getUpstreamLinks(id));
+            ups.add(id(layer + 1 + rand.nextInt(Math.min(3, layers - layer - 1)), rand.nextInt(width)));
+            try{
+                dag.add(id, ups);
+            }
+            catch(DAG.CycleException e){
+                cycles++;
+            }
+        }
+        o.printf("  link from deeper layer: %8.2f us per add (%d of %d were cycles)\n",
+                 (System.nanoTime() - start) / 1e3 / trials, cycles, trials);
+    }
+}
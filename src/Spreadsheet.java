@@ -1,40 +1,596 @@
 import java.util.Iterator;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
 
 // Basic model for a spreadsheet. Allows cells to be set by specifying their ID
 public class Spreadsheet{
 
     // DAG is useful for checking for any cycles in spreadsheet
     protected DAG dag;
-    // Map contains all cells in spreadsheet along with their Ids
-    protected Map<String,Cell> cellMap;
+    // Map contains all cells in spreadsheet along with their Ids, stored
+    // by column so number cells take no Cell object (see ColumnStore)
+    protected ColumnStore cellMap;
+    // number of cell evaluations (Cell.updateValue calls) performed by
+    // recalculation since construction or the last resetEvaluationCount()
+    protected long evaluationCount;
+    // statistics for the most recent recalculation
+    protected RecalcStats lastRecalc = new RecalcStats();
+    // when true, edits only mark downstream cells dirty and values are
+    // computed on demand when they are read
+    protected boolean lazy;
+    // ids of cells whose value is stale (lazy mode only). If a cell is
+    // dirty then every cell downstream of it is dirty as well. Kept in
+    // insertion order so runRecalcSlice can take the oldest dirty cell
+    // in O(1) instead of scanning a shrinking hash table for one.
+    protected Set<String> dirty;
+    // cells the user is looking at; runRecalcSlice brings them up to
+    // date before any other dirty cell
+    protected Set<String> priorityCells;
+    // cells waiting to be evaluated by runRecalcSlice; the top cell is
+    // evaluated once none of its upstream cells are dirty
+    protected Deque<String> sliceStack;
+    // pool used to evaluate independent cells in parallel; null means
+    // recalculation runs on the calling thread
+    protected ForkJoinPool recalcPool;
+    // levels with at most this many cells are evaluated sequentially
+    protected int sequentialCutoff = DEFAULT_SEQUENTIAL_CUTOFF;
+
+    // most sweeps used to solve a circular component in iterative
+    // calculation mode; 0 when the mode is off
+    protected int maxIterations;
+    // a component has converged once no value changes by more than this
+    // in a sweep
+    protected double tolerance;
+
+    // edits buffered by an open batch in the order they were made, an
+    // id mapped to null is a deletion; null when no batch is open
+    protected Map<String,String> pendingEdits;
+
+    // executor applying edits and recalculating in async mode; null
+    // when edits are applied on the calling thread
+    protected Executor asyncExecutor;
+    // completes once every edit submitted so far has been applied
+    protected CompletableFuture<Void> lastEdit;
+    // published state of each cell for readers in async mode
+    protected ConcurrentHashMap<String,Snapshot> snapshots;
+    // generation of the last edit whose recalculation has finished
+    protected volatile long publishedGeneration;
+    // completes when the next generation is published, see awaitPublished
+    protected volatile CompletableFuture<Void> nextPublish;
+    // ids whose cells were edited or evaluated by the edit being
+    // applied in async mode and not yet published, null otherwise
+    protected Set<String> touched;
+    // sequence number of the last edit submitted in async mode
+    protected long editSequence;
+    // for each id, the sequence number of the latest edit submitted for
+    // it that cannot fail (a constant or a deletion); dropped once that
+    // edit is published
+    protected ConcurrentHashMap<String,Long> latestSafeEdit;
+    // edits that have run but whose values are not published yet
+    // because they were superseded or their recalculation was
+    // abandoned; only used on the async executor
+    protected List<PendingEdit> unpublished;
+    // number of submitted edits per id that have not started yet
+    protected ConcurrentHashMap<String,Integer> queuedEdits;
+    // scheduled cells left unevaluated by an aborted recalculation; the
+    // next recalculation evaluates them along with its own cells
+    protected Set<String> carryOver = new HashSet<>();
+    // true while the async executor runs a recalculation that may be
+    // abandoned in favour of a newer edit
+    protected boolean abortable;
+    // set when the last recalculation was abandoned
+    protected boolean aborted;
+    // recalculations abandoned in a row, see MAX_CONSECUTIVE_ABORTS
+    protected int consecutiveAborts;
+    // queued edits skipped because a later edit replaced them. Both
+    // counters are only written on the async executor, one edit at a
+    // time, and volatile so that other threads read current values.
+    protected volatile long supersededEdits;
+    // recalculations abandoned because a newer edit changed their cone
+    protected volatile long abortedRecalcs;
+
+    // default for sequentialCutoff
+    public static final int DEFAULT_SEQUENTIAL_CUTOFF = 512;
+
+    // most recalculations abandoned in a row before one is allowed to
+    // finish, so readers still see new values under a constant stream
+    // of edits
+    public static final int MAX_CONSECUTIVE_ABORTS = 8;
+
+    // number of cells evaluated between checks for newer edits
+    protected static final int ABORT_CHECK_INTERVAL = 64;
 
     // Constructs a new empty spreadsheet
     // by creating an empty DAG and empty Map
     public Spreadsheet(){
         dag = new DAG();
-        cellMap = new HashMap<>();
+        cellMap = new ColumnStore();
+        dirty = new LinkedHashSet<>();
+        priorityCells = new LinkedHashSet<>();
+        sliceStack = new ArrayDeque<>();
+    }
+
+    // Constructs a new empty spreadsheet which evaluates lazily if
+    // lazy is true (see setLazy)
+    public Spreadsheet(boolean lazy){
+        this();
+        this.lazy = lazy;
+    }
+
+    // returns whether the sheet is in lazy evaluation mode
+    public boolean isLazy(){
+        return lazy;
+    }
+
+    // Turns on parallel recalculation using the given pool, or turns it
+    // off if pool is null. The affected cells are split into levels by
+    // their depth in the DAG; cells in one level do not depend on each
+    // other and are evaluated across the pool, with chunks of at most
+    // sequentialCutoff cells evaluated sequentially. Results are the
+    // same as sequential recalculation.
+    public void setParallelRecalc(ForkJoinPool pool, int sequentialCutoff){
+        if (sequentialCutoff < 1){
+            throw new IllegalArgumentException("sequentialCutoff must be positive");
+        }
+        this.recalcPool = pool;
+        this.sequentialCutoff = sequentialCutoff;
+    }
+
+    // Turns lazy evaluation on or off. In lazy mode setCell/deleteCell
+    // only mark the affected cells dirty and reads pull-evaluate the
+    // dirty cells they depend on. Turning lazy mode off brings every
+    // dirty cell up to date.
+    public void setLazy(boolean lazy){
+        if (lazy && asyncExecutor != null){
+            throw new RuntimeException("Lazy mode cannot be combined with async mode");
+        }
+        if (!lazy){
+            evaluateAllDirty();
+        }
+        this.lazy = lazy;
+    }
+
+    // Allows or forbids circular references. When allowed, a formula
+    // that closes a cycle is accepted instead of throwing a
+    // DAG.CycleException: every cell on the cycle shows CIRCULAR and
+    // cells depending on them show ERROR until the cycle is broken. A
+    // batch with a few bad references then loads in one pass. Forbidding
+    // them again throws a DAG.CycleException while any cycle remains.
+    public void setAllowCycles(boolean allow){
+        dag.setAllowCycles(allow);
+    }
+
+    // returns whether circular references are allowed
+    public boolean isAllowCycles(){
+        return dag.isAllowCycles();
+    }
+
+    // Turns on iterative calculation, which gives circular references
+    // values instead of the CIRCULAR state, or turns it off if
+    // maxIterations is 0. Each strongly connected component of the
+    // dependencies is solved on its own with Gauss-Seidel sweeps:
+    // members are evaluated in turn, each reading the newest values of
+    // the others and starting from their previous value (0 if they had
+    // none), until no value moves by more than tolerance or
+    // maxIterations sweeps are done, in which case the last values are
+    // kept. The rest of the sheet is still evaluated once per edit in
+    // topological order. With a parallel pool (see setParallelRecalc),
+    // components that do not depend on each other are solved in
+    // parallel. Turning the mode on allows cycles. Cells on cycles are
+    // recalculated under the new settings.
+    public void setIterativeCalculation(int maxIterations, double tolerance){
+        if (maxIterations < 0 || tolerance < 0){
+            throw new IllegalArgumentException("maxIterations and tolerance must not be negative");
+        }
+        if (maxIterations > 0){
+            dag.setAllowCycles(true);
+        }
+        this.maxIterations = maxIterations;
+        this.tolerance = tolerance;
+
+        Set<String> circular = new HashSet<>();
+        for (List<String> component : dag.circularComponents()){
+            circular.addAll(component);
+        }
+        if (lazy){
+            for (String id : circular){
+                markDirty(id);
+            }
+        } else if (!circular.isEmpty()){
+            recalculate(circular);
+        }
+    }
+
+    // returns whether circular references are solved iteratively
+    public boolean isIterativeCalculation(){
+        return maxIterations > 0;
+    }
+
+    // Turns async mode on using the given executor, or off if executor
+    // is null. In async mode edits are made with setCellAsync and
+    // deleteCellAsync, which return immediately; the edits are applied
+    // one at a time, in order, on the executor. Reads return the values
+    // of the last edit whose recalculation has completed, never a mix of
+    // old and new values. Turning async mode off waits for all edits.
+    // Runtime: O(C) --> C: number of cells, to publish the current values
+    public synchronized void setAsync(Executor executor){
+        if (executor != null && lazy){
+            throw new RuntimeException("Async mode cannot be combined with lazy mode");
+        }
+        if (asyncExecutor != null){
+            awaitRecalc();
+        }
+        asyncExecutor = executor;
+        if (executor == null){
+            snapshots = null;
+            lastEdit = null;
+            return;
+        }
+        snapshots = new ConcurrentHashMap<>();
+        latestSafeEdit = new ConcurrentHashMap<>();
+        queuedEdits = new ConcurrentHashMap<>();
+        unpublished = new ArrayList<>();
+        nextPublish = new CompletableFuture<>();
+        for (Map.Entry<String,Cell> entry : cellMap.entrySet()){
+            snapshots.put(entry.getKey(), new Snapshot(0, entry.getValue(), null));
+        }
+        publishedGeneration = 0;
+        lastEdit = CompletableFuture.completedFuture(null);
+    }
+
+    // returns whether the sheet is in async mode
+    public boolean isAsync(){
+        return asyncExecutor != null;
+    }
+
+    // Async mode version of setCell. Returns a future which completes
+    // when the edit and its recalculation are visible to readers, or
+    // completes exceptionally if the edit failed (for example with a
+    // DAG.CycleException), in which case the sheet is unchanged.
+    //
+    // Edits arriving faster than they can be recalculated are merged:
+    // an edit that has not started is skipped if a later constant or
+    // deletion was submitted for the same cell, since that later edit
+    // cannot fail and replaces it; the skipped edit's future completes
+    // normally once that later edit is visible. A recalculation still
+    // running when an edit to a cell in its cone is queued is abandoned
+    // and its remaining cells are evaluated together with the newer
+    // edit's (at most MAX_CONSECUTIVE_ABORTS times in a row); the
+    // abandoned edit's future completes when they are published.
+    // Runtime: O(1) on the calling thread
+    public Future<Void> setCellAsync(final String id, final String contents){
+        return submitEdit(id, isSafeEdit(contents), () -> applySetCell(id, contents));
+    }
+
+    // Async mode version of deleteCell, see setCellAsync
+    public Future<Void> deleteCellAsync(final String id){
+        return submitEdit(id, true, () -> applyDeleteCell(id));
+    }
+
+    // Waits for an edit that setCell or deleteCell queued in async mode
+    // and rethrows its failure, so those calls behave as they do outside
+    // async mode
+    protected static void awaitEdit(CompletableFuture<Void> edit){
+        try {
+            edit.join();
+        } catch (CompletionException e){
+            if (e.getCause() instanceof RuntimeException){
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    // returns true if setting a cell to contents can never fail, that
+    // is, contents is not a formula
+    protected static boolean isSafeEdit(String contents){
+        return contents == null || !contents.trim().startsWith("=");
+    }
+
+    // returns the number of async edits skipped because a later edit
+    // to the same cell replaced them before they started
+    public long getSupersededEdits(){
+        return supersededEdits;
+    }
+
+    // returns the number of async recalculations abandoned because a
+    // newer edit changed a cell in their cone
+    public long getAbortedRecalcs(){
+        return abortedRecalcs;
+    }
+
+    // Waits until every edit submitted in async mode has been applied
+    // and published. Does nothing outside async mode.
+    public void awaitRecalc(){
+        CompletableFuture<Void> last;
+        synchronized (this){
+            last = lastEdit;
+        }
+        if (last != null){
+            last.exceptionally(e -> null).join();
+        }
+    }
+
+    // Queues edit of id to run on the async executor after all earlier
+    // edits, whether or not they succeeded. safe marks edits that cannot
+    // fail, which supersede earlier queued edits of the same id. The
+    // returned future completes once the edit is published.
+    protected synchronized CompletableFuture<Void> submitEdit(final String id, boolean safe,
+                                                             final Runnable edit){
+        if (asyncExecutor == null){
+            throw new RuntimeException("Spreadsheet is not in async mode");
+        }
+        final long sequence = ++editSequence;
+        if (safe){
+            latestSafeEdit.put(id, sequence);
+        }
+        queuedEdits.merge(id, 1, Integer::sum);
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        lastEdit = lastEdit.exceptionally(e -> null).thenRunAsync(
+            () -> runEdit(id, sequence, edit, done), asyncExecutor);
+        return done;
+    }
+
+    // Runs on the async executor: applies an edit unless a later edit
+    // supersedes it, finishes any work carried over from an abandoned
+    // recalculation, and publishes the result unless the recalculation
+    // was abandoned in turn. done completes when the edit, or the edit
+    // superseding it, is published, or at once if the edit fails.
+    protected void runEdit(String id, long sequence, Runnable edit, CompletableFuture<Void> done){
+        queuedEdits.computeIfPresent(id, (key, count) -> count == 1 ? null : count - 1);
+        Long latestSafe = latestSafeEdit.get(id);
+        if (latestSafe != null && latestSafe > sequence){
+            supersededEdits++;
+            unpublished.add(new PendingEdit(id, sequence, latestSafe, done));
+            return;
+        }
+
+        if (touched == null){
+            touched = new HashSet<>();
+        }
+        touched.add(id);
+        unpublished.add(new PendingEdit(id, sequence, sequence, done));
+        aborted = false;
+        abortable = consecutiveAborts < MAX_CONSECUTIVE_ABORTS;
+        try {
+            edit.run();
+        } catch (RuntimeException e){
+            // the sheet is unchanged, so there is nothing to wait for
+            done.completeExceptionally(e);
+        } finally {
+            if (!aborted && !carryOver.isEmpty()){
+                // the edit failed before recalculating
+                recalculate(Collections.<String>emptySet());
+            }
+            abortable = false;
+            if (aborted){
+                consecutiveAborts++;
+            } else {
+                consecutiveAborts = 0;
+                publish(sequence);
+            }
+        }
+    }
+
+    // In an abortable recalculation, returns true if an edit to one of
+    // the cells in order has been queued since the recalculation began
+    protected boolean newerEditInCone(List<String> order, Set<String> cone){
+        if (!abortable || queuedEdits.isEmpty()){
+            return false;
+        }
+        if (cone.isEmpty()){
+            cone.addAll(order);
+        }
+        for (String id : queuedEdits.keySet()){
+            if (cone.contains(id)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Abandons the current recalculation, keeping the scheduled cells
+    // of order that were not evaluated for the next one
+    protected void abortRecalc(List<String> remaining, Schedule scheduled){
+        for (String id : remaining){
+            if (scheduled.contains(id)){
+                carryOver.add(id);
+                lastRecalc.carried++;
+            }
+        }
+        aborted = true;
+        abortedRecalcs++;
+    }
+
+    // Makes the cells touched by the edits up to sequence visible to
+    // readers as a new generation. Each new snapshot keeps the one it
+    // replaces so that readers still on the previous generation can
+    // finish; publishedGeneration is written last, then the readers
+    // waiting for it are woken and the futures of the edits it includes
+    // are completed.
+    // Runtime: O(T + P) --> T: number of cells touched by the edits
+    //                       P: number of edits waiting to be published
+    protected void publish(long sequence){
+        long generation = publishedGeneration + 1;
+        for (String id : touched){
+            Snapshot old = snapshots.get(id);
+            if (old == null){
+                old = new Snapshot(0, null, null);
+            }
+            snapshots.put(id, new Snapshot(generation, cellMap.get(id), old.withoutPrevious()));
+        }
+        touched = null;
+        publishedGeneration = generation;
+        CompletableFuture<Void> published = nextPublish;
+        nextPublish = new CompletableFuture<>();
+        published.complete(null);
+
+        List<PendingEdit> waiting = new ArrayList<>();
+        for (PendingEdit pending : unpublished){
+            if (pending.publishedWith > sequence){
+                waiting.add(pending);
+                continue;
+            }
+            latestSafeEdit.remove(pending.id, pending.sequence);
+            pending.done.complete(null);
+        }
+        unpublished = waiting;
+    }
+
+    // Blocks until generation has been published and returns the
+    // current published generation
+    protected long awaitPublished(long generation){
+        while (true){
+            // read the future first: publish writes the generation before
+            // replacing it, so a missed publish has completed it already
+            CompletableFuture<Void> next = nextPublish;
+            long published = publishedGeneration;
+            if (published >= generation){
+                return published;
+            }
+            next.join();
+        }
+    }
+
+    // Returns the snapshot of id as of the given generation, or null if
+    // both kept versions are newer, meaning generation is out of date
+    protected Snapshot snapshotAt(String id, long generation){
+        Snapshot snap = snapshots.get(id);
+        if (snap == null){
+            return Snapshot.EMPTY;
+        }
+        if (snap.generation <= generation){
+            return snap;
+        }
+        if (snap.previous.generation <= generation){
+            return snap.previous;
+        }
+        return null;
+    }
+
+    // returns the published snapshot of id in async mode. If newer
+    // publishes replaced both kept versions after the generation was
+    // read, waits for the one under way to finish and reads again.
+    protected Snapshot publishedSnapshot(String id){
+        long generation = publishedGeneration;
+        Snapshot snap = snapshotAt(id, generation);
+        while (snap == null){
+            generation = awaitPublished(snapshots.get(id).generation);
+            snap = snapshotAt(id, generation);
+        }
+        return snap;
+    }
+
+    // Retrieve the display strings of several cells at once. In async
+    // mode all of them come from the same generation so they are
+    // consistent with each other. Empty cells map to "".
+    // Runtime: O(N) --> N: number of ids
+    public Map<String,String> getCellDisplayStrings(Collection<String> ids){
+        Map<String,String> displays = new HashMap<>();
+        if (asyncExecutor == null){
+            for (String id : ids){
+                displays.put(id, getCellDisplayString(id));
+            }
+            return displays;
+        }
+        long generation = publishedGeneration;
+        boolean consistent = false;
+        while (!consistent){
+            consistent = true;
+            for (String id : ids){
+                Snapshot snap = snapshotAt(id, generation);
+                if (snap == null){
+                    generation = awaitPublished(snapshots.get(id).generation);
+                    consistent = false;
+                    break;
+                }
+                displays.put(id, snap.display);
+            }
+        }
+        return displays;
+    }
+
+    // An async edit that has run, with the sequence number of the edit
+    // whose publication makes its values visible: its own, or that of
+    // the edit superseding it
+    protected static class PendingEdit{
+        public final String id;
+        public final long sequence;
+        public final long publishedWith;
+        public final CompletableFuture<Void> done;
+
+        public PendingEdit(String id, long sequence, long publishedWith,
+                           CompletableFuture<Void> done){
+            this.id = id;
+            this.sequence = sequence;
+            this.publishedWith = publishedWith;
+            this.done = done;
+        }
+    }
+
+    // The published state of a cell in async mode as of a generation,
+    // along with the state it replaced. Empty cells have "" contents.
+    protected static class Snapshot{
+        // snapshot of a cell that has never been set
+        public static final Snapshot EMPTY = new Snapshot(0, null, null);
+
+        public final long generation;
+        public final String contents;
+        public final String display;
+        public final Double value;
+        public final Snapshot previous;
+
+        public Snapshot(long generation, Cell cell, Snapshot previous){
+            this(generation,
+                 cell == null ? "" : cell.contents(),
+                 cell == null ? "" : cell.displayString(),
+                 cell == null ? null : cell.numberValue(),
+                 previous);
+        }
+
+        protected Snapshot(long generation, String contents, String display,
+                           Double value, Snapshot previous){
+            this.generation = generation;
+            this.contents = contents;
+            this.display = display;
+            this.value = value;
+            this.previous = previous;
+        }
+
+        // copy of this snapshot that does not keep the one it replaced
+        public Snapshot withoutPrevious(){
+            return new Snapshot(generation, contents, display, value, null);
+        }
     }
 
     // String representation of spreadsheet
     // Runtime: O(C+U+D)
     // C: number of cells, U: size of upstreamLinks in dag
     // D: size of downstreamLinks in dag
+    // In async mode waits for submitted edits to be applied first.
     public String toString(){
 
+        awaitRecalc();
+
         StringBuilder sb = new StringBuilder();
 
         sb.append("    ID |  Value | Contents\n");
         sb.append("-------+--------+---------------\n");
 
-        Set<String> ids = cellMap.keySet();
-
-        Iterator<String> iter = ids.iterator();
+        evaluateAllDirty();
 
-        while (iter.hasNext()){
-            String id = iter.next();
-            Cell c = cellMap.get(id);
-            sb.append(String.format("%6s | %6s | '%s'\n", id, c.displayString(), c.contents()));
+        // each line is laid out as "%6s | %6s | '%s'" by hand, since
+        // going through java.util.Formatter for every cell dominated
+        // rendering a large sheet
+        for (String id : cellMap.keySet()){
+            padLeft(sb, id, 6).append(" | ");
+            padLeft(sb, cellMap.displayString(id), 6).append(" | '").append(cellMap.contents(id)).append("'\n");
         }
 
         sb.append("\nCell Dependencies\n" + dag.toString());
@@ -43,6 +599,15 @@ public class Spreadsheet{
 
     }
 
+    // Helper that appends s to sb right aligned in width characters,
+    // like "%<width>s"
+    protected static StringBuilder padLeft(StringBuilder sb, String s, int width){
+        for (int i = s.length(); i < width; i++){
+            sb.append(' ');
+        }
+        return sb.append(s);
+    }
+
     // Check if a cell ID is well formatted.  It must match the regular
     // expression : Capital Letter + Number from 0-9 + Number from 0-9
     public static void verifyIDFormat(String id){
@@ -53,44 +618,173 @@ public class Spreadsheet{
 
     // Retrieve a string which should be displayed for the value of the
     // cell with the given ID. Return "" if the specified cell is empty.
-    // Runtime: O(1)
+    // Runtime: O(1), in lazy mode O(U) where U is the number of dirty
+    // cells upstream of id
     public String getCellDisplayString(String id){
+        if (asyncExecutor != null){
+            return publishedSnapshot(id).display;
+        }
+        if (!cellMap.containsKey(id)){
+            return "";
+        }
+        evaluateIfDirty(id);
+        return cellMap.displayString(id);
+    }
+
+    // Retrieve the number value of the cell with the given ID. Returns
+    // null if the cell is empty, a string or in an error state.
+    // Runtime: same as getCellDisplayString
+    public Double getCellValue(String id){
+        if (asyncExecutor != null){
+            return publishedSnapshot(id).value;
+        }
         Cell cell =  cellMap.get(id);
         if (cell == null){
-            return "";
+            return null;
         }
-        return cell.displayString();
+        evaluateIfDirty(id);
+        return cell.numberValue();
     }
 
     // Retrieve a string which is the actual contents of the cell with
     // the given ID. Return "" if the specified cell is empty.
     // Runtime: O(1)
     public String getCellContents(String id){
-        Cell cell =  cellMap.get(id);
-        if (cell == null){
-            return "";
+        if (asyncExecutor != null){
+            return publishedSnapshot(id).contents;
+        }
+        String contents = cellMap.contents(id);
+        return contents == null ? "" : contents;
+    }
+
+
+    // Starts a batch of edits. Until commit() is called setCell and
+    // deleteCell only record the edit; reads see the sheet as it was
+    // before the batch.
+    public void beginBatch(){
+        if (asyncExecutor != null){
+            throw new RuntimeException("Batches cannot be combined with async mode");
+        }
+        if (pendingEdits != null){
+            throw new RuntimeException("A batch is already in progress");
+        }
+        pendingEdits = new LinkedHashMap<>();
+    }
+
+    // returns whether a batch of edits is open
+    public boolean isInBatch(){
+        return pendingEdits != null;
+    }
+
+    // Applies every edit made since beginBatch(). All DAG links are
+    // changed together and checked for cycles once, then the union of
+    // the cells downstream of the edits is recalculated once. If the
+    // edits introduce a cycle, or a formula cannot be parsed, none of
+    // them are applied and the exception is rethrown. The batch is
+    // closed either way.
+    // Runtime: O(B + C + E) --> B: edits in the batch, C: cells
+    //   downstream of the edits, E: links between those cells
+    public void commit(){
+        if (pendingEdits == null){
+            throw new RuntimeException("No batch in progress");
+        }
+        Map<String,String> edits = pendingEdits;
+        pendingEdits = null;
+
+        Map<String,Cell> cells = new HashMap<>();
+        Map<String,Set<String>> links = new HashMap<>();
+        for (Map.Entry<String,String> edit : edits.entrySet()){
+            String contents = edit.getValue();
+            if (contents == null || contents.equals("")){
+                cells.put(edit.getKey(), null);
+                links.put(edit.getKey(), Collections.<String>emptySet());
+            } else {
+                Cell cell = Cell.make(contents);
+                cells.put(edit.getKey(), cell);
+                links.put(edit.getKey(), cell.getUpstreamIDs());
+            }
+        }
+
+        dag.addAll(links);
+
+        for (Map.Entry<String,Cell> change : cells.entrySet()){
+            if (change.getValue() == null){
+                cellMap.remove(change.getKey());
+            } else {
+                cellMap.put(change.getKey(), change.getValue());
+            }
+        }
+
+        if (lazy){
+            for (String id : cells.keySet()){
+                markDirty(id);
+            }
+        } else {
+            recalculate(cells.keySet());
         }
-        return cell.contents();
     }
 
+    // Discards every edit made since beginBatch() and closes the batch
+    public void rollback(){
+        if (pendingEdits == null){
+            throw new RuntimeException("No batch in progress");
+        }
+        pendingEdits = null;
+    }
 
     // Delete the contents of the cell with the given ID. Update all
     // downstream cells of the change. If specified cell is empty, do
-    // nothing.
+    // nothing. In async mode the deletion is queued like
+    // deleteCellAsync and this waits until it is published, so it must
+    // not be called from the async executor.
     public void deleteCell(String id){
+        if (asyncExecutor != null){
+            awaitEdit(submitEdit(id, true, () -> applyDeleteCell(id)));
+            return;
+        }
+        applyDeleteCell(id);
+    }
+
+    // Helper that performs deleteCell on the calling thread
+    protected void applyDeleteCell(String id){
+
+        if (pendingEdits != null){
+            pendingEdits.put(id, null);
+            return;
+        }
 
         cellMap.remove(id);
-        notifyDownstreamOfChange(id);
         dag.remove(id);
+        if (lazy){
+            markDirty(id);
+        } else {
+            recalculate(Collections.singleton(id));
+        }
 
     }
 
     // Sets the given cell with the given contents. If contents is "" or
-    // null, delete the cell indicated.
+    // null, delete the cell indicated. In async mode the edit is queued
+    // like setCellAsync and this waits until it is published, rethrowing
+    // its failure, so it must not be called from the async executor.
     public void setCell(String id, String contents){
+        if (asyncExecutor != null){
+            awaitEdit(submitEdit(id, isSafeEdit(contents), () -> applySetCell(id, contents)));
+            return;
+        }
+        applySetCell(id, contents);
+    }
+
+    // Helper that performs setCell on the calling thread
+    protected void applySetCell(String id, String contents){
 
         if (contents == null || contents.equals("")){
-            deleteCell(id);
+            applyDeleteCell(id);
+            return;
+        }
+
+        if (pendingEdits != null){
+            pendingEdits.put(id, contents);
             return;
         }
 
@@ -99,29 +793,730 @@ public class Spreadsheet{
         Set<String> upDependencies = cell.getUpstreamIDs();
 
 
-        dag.add(id, upDependencies);
+        dag.replaceUpstream(id, upDependencies);
 
         cellMap.put(id, cell);
 
+        if (lazy){
+            markDirty(id);
+        } else {
+            recalculate(Collections.singleton(id));
+        }
+
+    }
+
+    // updates all downstream links after id has been updated. Each cell
+    // in the downstream cone is evaluated at most once, in topological
+    // order, so that every upstream value is current when it is read.
+    // A cell is only evaluated if one of its upstream cells changed
+    // value, so propagation stops where values stay the same.
+    // id itself is not re-evaluated.
+    // Runtime: O(C + E) --> C: cells in the downstream cone of id
+    //                       E: links between those cells
+    public void notifyDownstreamOfChange(String id){
+        List<String> order = topologicalCone(Collections.singleton(id));
+        Schedule scheduled = new Schedule();
+        scheduled.addDownstream(id);
+        evaluateInOrder(order.subList(1, order.size()), scheduled);
+    }
+
+    // evaluates the given ids, which were just edited or deleted, and
+    // then the cells downstream of them whose upstream values changed,
+    // each at most once and in topological order. Cells carried over
+    // from an abandoned recalculation are included.
+    // Runtime: O(C + E), see notifyDownstreamOfChange
+    protected void recalculate(Collection<String> ids){
+        Schedule scheduled = new Schedule();
+        for (String id : ids){
+            scheduled.add(id);
+            scheduled.addDownstream(id);
+        }
+        if (!carryOver.isEmpty()){
+            ids = new ArrayList<>(ids);
+            ids.addAll(carryOver);
+            for (String id : carryOver){
+                scheduled.add(id);
+            }
+            carryOver.clear();
+        }
+        evaluateInOrder(topologicalCone(ids), scheduled);
+    }
+
+    // Evaluates the cells named in order, which must be topological,
+    // skipping ids with no cell. If scheduled is null every cell is
+    // evaluated; otherwise only scheduled cells are, and a cell whose
+    // value changes schedules its downstream cells; cycles that were
+    // closed or broken are scheduled first (see scheduleCircularChanges).
+    // Cells left out are counted as skipped in the statistics. Uses the
+    // parallel pool if one is set.
+    protected void evaluateInOrder(List<String> order, Schedule scheduled){
+        lastRecalc = new RecalcStats();
+        if (scheduled != null){
+            scheduleCircularChanges(order, scheduled);
+        }
+        if (recalcPool != null && order.size() > sequentialCutoff){
+            evaluateByLevel(order, scheduled);
+        } else {
+            Set<String> cone = new HashSet<>();
+            Set<String> solved = new HashSet<>();
+            for (int i = 0; i < order.size(); i++){
+                String id = order.get(i);
+                if (i % ABORT_CHECK_INTERVAL == ABORT_CHECK_INTERVAL - 1
+                    && scheduled != null && newerEditInCone(order, cone)){
+                    abortRecalc(order.subList(i, order.size()), scheduled);
+                    break;
+                }
+                Cell cell = cellMap.get(id);
+                if (cell == null){
+                    continue;
+                }
+                if (maxIterations > 0 && dag.isCircular(id)){
+                    // the whole component is solved when its first member
+                    // comes up, since all of their upstream cells are done
+                    if (!solved.add(id)){
+                        continue;
+                    }
+                    List<String> members = dag.circularComponent(id);
+                    solved.addAll(members);
+                    if (scheduled != null && !scheduled.containsAny(members)){
+                        lastRecalc.skipped += members.size();
+                        continue;
+                    }
+                    SolveComponent solve = new SolveComponent(members);
+                    solve.compute();
+                    finishComponent(solve, scheduled);
+                    continue;
+                }
+                if (scheduled != null && !scheduled.contains(id)){
+                    lastRecalc.skipped++;
+                    continue;
+                }
+                lastRecalc.evaluated++;
+                if (touched != null){
+                    touched.add(id);
+                }
+                if (evaluate(id, cell) && scheduled != null){
+                    scheduled.addDownstream(id);
+                }
+            }
+        }
+        evaluationCount += lastRecalc.evaluated;
+    }
+
+    // Helper for evaluateInOrder when cycles show CIRCULAR: schedules
+    // every cell in order whose CIRCULAR state no longer matches the DAG,
+    // together with the rest of its cycle. An edit that closes or breaks
+    // a cycle changes the state of members that may come before the
+    // edited cell in the order, so propagation alone would miss them.
+    // Runtime: O(K) --> K: number of ids in order
+    protected void scheduleCircularChanges(List<String> order, Schedule scheduled){
+        if (maxIterations > 0 || !dag.isAllowCycles()){
+            return;
+        }
+        for (String id : order){
+            Cell cell = cellMap.get(id);
+            if (cell == null || cell.isCircular() == dag.isCircular(id)){
+                continue;
+            }
+            scheduled.add(id);
+            for (String member : dag.circularComponent(id)){
+                scheduled.add(member);
+            }
+        }
+    }
+
+    // Solves a circular component in iterative calculation mode, see
+    // setIterativeCalculation. Runs as a fork/join task so independent
+    // components can be solved in parallel; records which members
+    // changed value, the sweeps used and whether it converged.
+    protected class SolveComponent extends RecursiveAction{
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> members;
+        private final boolean[] changed;
+        private int sweeps;
+        private boolean converged;
+
+        public SolveComponent(List<String> members){
+            this.members = members;
+            this.changed = new boolean[members.size()];
+        }
+
+        @Override protected void compute(){
+            List<Cell> cells = new ArrayList<>();
+            Double[] before = new Double[members.size()];
+            for (int i = 0; i < members.size(); i++){
+                // members always have formulas: they have upstream links
+                Cell cell = cellMap.get(members.get(i));
+                before[i] = cell.numberValue();
+                changed[i] = cell.isCircular();
+                cell.setCircular(false);
+                cell.startIteration();
+                cells.add(cell);
+            }
+            while (!converged && sweeps < maxIterations){
+                sweeps++;
+                double delta = 0;
+                boolean error = false;
+                for (Cell cell : cells){
+                    double old = cell.value();
+                    cell.updateValue(cellMap);
+                    if (!cell.hasValue()){
+                        error = true;
+                    } else {
+                        delta = Math.max(delta, Math.abs(cell.value() - old));
+                    }
+                }
+                if (error){
+                    // every member depends on the one in error
+                    for (Cell cell : cells){
+                        cell.markError();
+                    }
+                }
+                converged = error || delta <= tolerance;
+            }
+            for (int i = 0; i < cells.size(); i++){
+                changed[i] |= !Objects.equals(before[i], cells.get(i).numberValue());
+            }
+        }
+    }
+
+    // Records the result of solving a component in the statistics and
+    // schedules the cells downstream of the members that changed
+    protected void finishComponent(SolveComponent solve, Schedule scheduled){
+        lastRecalc.evaluated += solve.members.size() * solve.sweeps;
+        lastRecalc.sweeps += solve.sweeps;
+        if (!solve.converged){
+            lastRecalc.unconverged++;
+        }
+        if (touched != null){
+            touched.addAll(solve.members);
+        }
+        for (int i = 0; i < solve.changed.length; i++){
+            if (solve.changed[i] && scheduled != null){
+                scheduled.addDownstream(solve.members.get(i));
+            }
+        }
+    }
+
+    // evaluates the cell with the given id and returns true if its
+    // value or error state changed. A cell on a circular reference gets
+    // the circular error state instead of a value.
+    protected boolean evaluate(String id, Cell cell){
+        boolean hadValue = cell.hasValue();
+        double before = cell.value();
+        boolean wasCircular = cell.isCircular();
+        cell.setCircular(maxIterations == 0 && dag.isCircular(id));
         cell.updateValue(cellMap);
+        return hadValue != cell.hasValue() || (hadValue && Double.compare(before, cell.value()) != 0)
+            || wasCircular != cell.isCircular();
+    }
 
-        notifyDownstreamOfChange(id);
+    // Level-synchronous parallel evaluation of a topological order.
+    // A cell's level is the length of the longest path to it from the
+    // start of order, so cells in the same level never depend on each
+    // other. Levels are evaluated one after another, each across the
+    // pool; cells scheduled by a level are known before the next starts.
+    // Runtime: O(C + E) work --> C: cells in order, E: links between them
+    protected void evaluateByLevel(List<String> order, Schedule scheduled){
+        List<List<String>> levels = new ArrayList<>();
+        List<List<List<String>>> componentLevels = new ArrayList<>();
+        if (maxIterations > 0 && dag.hasCycles()){
+            placeByLevel(order, levels, componentLevels);
+        } else {
+            // the levels are found on node numbers in the DAG, which
+            // avoids hashing every id of a large cone
+            int[] levelOf = dag.levelsWithin(order);
+            for (int i = 0; i < levelOf.length; i++){
+                while (levelOf[i] >= levels.size()){
+                    levels.add(new ArrayList<String>());
+                    componentLevels.add(new ArrayList<List<String>>());
+                }
+                levels.get(levelOf[i]).add(order.get(i));
+            }
+        }
 
+        Set<String> cone = new HashSet<>();
+        int done = 0;
+        for (List<String> level : levels){
+            if (scheduled != null && newerEditInCone(order, cone)){
+                List<String> remaining = new ArrayList<>();
+                for (int rest = done; rest < levels.size(); rest++){
+                    remaining.addAll(levels.get(rest));
+                    for (List<String> component : componentLevels.get(rest)){
+                        remaining.addAll(component);
+                    }
+                }
+                abortRecalc(remaining, scheduled);
+                break;
+            }
+            solveComponents(componentLevels.get(done), scheduled);
+            done++;
+            // the cells are looked up, checked against the schedule and
+            // evaluated in parallel chunks; only the results are gathered
+            // here
+            byte[] results = new byte[level.size()];
+            EvaluateRange range = new EvaluateRange(level, scheduled, results, 0, level.size());
+            if (level.size() <= sequentialCutoff){
+                range.compute();
+            } else {
+                recalcPool.invoke(range);
+            }
+            for (int i = 0; i < results.length; i++){
+                if (results[i] == EvaluateRange.SKIPPED){
+                    lastRecalc.skipped++;
+                    continue;
+                } else if (results[i] == EvaluateRange.NO_CELL){
+                    continue;
+                }
+                lastRecalc.evaluated++;
+                if (touched != null){
+                    touched.add(level.get(i));
+                }
+                if (results[i] == EvaluateRange.CHANGED && scheduled != null){
+                    scheduled.addDownstream(level.get(i));
+                }
+            }
+        }
     }
 
-    // updates all downstream links after id has been updated
-    // and performs the same for those downstreamlinks (recursive)
-    // O(D) --> D: number of downstream links
-    public void notifyDownstreamOfChange(String id){
-        Set<String> downStreamLinks = dag.getDownstreamLinks(id);
+    // Helper for evaluateByLevel in iterative calculation mode that
+    // splits order into levels of cells and levels of circular
+    // components; a component is placed in a single level, after
+    // everything upstream of any member
+    protected void placeByLevel(List<String> order, List<List<String>> levels,
+                                List<List<List<String>>> componentLevels){
+        Map<String,Integer> levelOf = new HashMap<>();
+        for (String id : order){
+            levelOf.put(id, 0);
+        }
+        Set<String> placed = new HashSet<>();
+        for (String id : order){
+            List<String> unit = Collections.singletonList(id);
+            Set<String> members = Collections.emptySet();
+            boolean component = maxIterations > 0 && dag.isCircular(id);
+            if (component){
+                if (!placed.add(id)){
+                    continue;
+                }
+                unit = dag.circularComponent(id);
+                members = new HashSet<>(unit);
+                placed.addAll(unit);
+            }
+            int level = 0;
+            for (String member : unit){
+                level = Math.max(level, levelOf.get(member));
+            }
+            if (level == levels.size()){
+                levels.add(new ArrayList<String>());
+                componentLevels.add(new ArrayList<List<String>>());
+            }
+            if (!component){
+                levels.get(level).add(id);
+            } else {
+                componentLevels.get(level).add(unit);
+            }
+            for (String member : unit){
+                for (String down : dag.getDownstreamLinks(member)){
+                    Integer downLevel = levelOf.get(down);
+                    if (downLevel != null && downLevel <= level && !members.contains(down)){
+                        levelOf.put(down, level + 1);
+                    }
+                }
+            }
+        }
+    }
+
+    // Solves the circular components of one level, which do not depend
+    // on each other, across the pool
+    protected void solveComponents(List<List<String>> components, Schedule scheduled){
+        final List<SolveComponent> solves = new ArrayList<>();
+        for (List<String> members : components){
+            if (scheduled != null && !scheduled.containsAny(members)){
+                lastRecalc.skipped += members.size();
+            } else {
+                solves.add(new SolveComponent(members));
+            }
+        }
+        if (solves.size() == 1){
+            solves.get(0).compute();
+        } else if (solves.size() > 1){
+            recalcPool.invoke(new RecursiveAction(){
+                @Override protected void compute(){
+                    invokeAll(solves);
+                }
+            });
+        }
+        for (SolveComponent solve : solves){
+            finishComponent(solve, scheduled);
+        }
+    }
+
+    // Fork/join task evaluating a range of the ids of a single level,
+    // splitting the range in half until it is below sequentialCutoff.
+    // Ids without a cell and cells not scheduled are left alone; records
+    // in results what happened to each id.
+    protected class EvaluateRange extends RecursiveAction{
+        private static final long serialVersionUID = 1L;
+
+        public static final byte NO_CELL = 0, SKIPPED = 1, SAME = 2, CHANGED = 3;
+
+        private final List<String> ids;
+        private final Schedule scheduled;
+        private final byte[] results;
+        private final int lo, hi;
 
-        for (String downStreamId: downStreamLinks){
-            Cell downCell = cellMap.get(downStreamId);
-            if (downCell != null){
-                downCell.updateValue(cellMap);
-                notifyDownstreamOfChange(downStreamId);
+        public EvaluateRange(List<String> ids, Schedule scheduled, byte[] results, int lo, int hi){
+            this.ids = ids;
+            this.scheduled = scheduled;
+            this.results = results;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override protected void compute(){
+            if (hi - lo <= sequentialCutoff){
+                for (int i = lo; i < hi; i++){
+                    String id = ids.get(i);
+                    Cell cell = cellMap.get(id);
+                    if (cell == null){
+                        results[i] = NO_CELL;
+                    } else if (scheduled != null && !scheduled.contains(id)){
+                        results[i] = SKIPPED;
+                    } else {
+                        results[i] = evaluate(id, cell) ? CHANGED : SAME;
+                    }
+                }
+                return;
             }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new EvaluateRange(ids, scheduled, results, lo, mid),
+                      new EvaluateRange(ids, scheduled, results, mid, hi));
         }
     }
 
-}
\ No newline at end of file
+    // The cells a recalculation is to evaluate, out of those in the
+    // affected cone. When a cell changes, its downstream cells are added
+    // one by one, unless it has a high fan-out (see DAG.isHighFanOut):
+    // then only the cell is kept as a source, and a cell counts as
+    // scheduled if it is downstream of a source. Changing a cell that a
+    // million formulas reference thus costs no million set insertions,
+    // and contains only reads, so the parallel chunks of a level can
+    // check their own cells.
+    protected class Schedule{
+        protected final Set<String> ids = new HashSet<>();
+        protected final List<String> sources = new ArrayList<>();
+
+        // schedules id
+        public void add(String id){
+            ids.add(id);
+        }
+
+        // schedules the cells downstream of id
+        // Runtime: O(1) for a high fan-out id, O(D) otherwise
+        //   D: number of downstream links of id
+        public void addDownstream(String id){
+            if (dag.isHighFanOut(id)){
+                if (!sources.contains(id)){
+                    sources.add(id);
+                }
+            } else {
+                ids.addAll(dag.getDownstreamLinks(id));
+            }
+        }
+
+        // returns true if id is scheduled
+        // Runtime: O(1 + S) --> S: number of high fan-out sources
+        public boolean contains(String id){
+            if (ids.contains(id)){
+                return true;
+            }
+            for (String source : sources){
+                if (dag.getDownstreamLinks(source).contains(id)){
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // returns true if any of the given ids is scheduled
+        public boolean containsAny(Collection<String> members){
+            for (String id : members){
+                if (contains(id)){
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // Statistics about a single recalculation: the number of cell
+    // evaluations (a circular component counts once per member and
+    // sweep), the number of cells in the affected cone that were
+    // skipped because none of their upstream values changed, and the
+    // number of cells left for the next recalculation because a newer
+    // edit superseded this one (async mode only)
+    public static class RecalcStats{
+        public int evaluated;
+        public int skipped;
+        public int carried;
+        // sweeps used to solve circular components and the components
+        // that did not converge (iterative calculation mode only)
+        public int sweeps;
+        public int unconverged;
+
+        @Override public String toString(){
+            return String.format("evaluated=%d skipped=%d carried=%d sweeps=%d unconverged=%d",
+                                 evaluated, skipped, carried, sweeps, unconverged);
+        }
+    }
+
+    // returns statistics for the most recent recalculation (an edit, a
+    // batch commit or, in lazy mode, a read that evaluated dirty cells)
+    public RecalcStats getLastRecalcStats(){
+        return lastRecalc;
+    }
+
+    // Collects every id reachable from the given ids through downstream
+    // links (the ids themselves included) and returns them in topological
+    // order: each id appears after all of its upstream ids in the cone.
+    // Runtime: O(C log C + E) --> C: ids in the cone, E: links between them
+    protected List<String> topologicalCone(Collection<String> ids){
+        return dag.downstreamCone(ids);
+    }
+
+    // Compacts the cell dependencies into the DAG's frozen form, which
+    // makes recalculation faster on sheets whose formulas rarely change.
+    // Later edits still work and are merged in as they accumulate; call
+    // again after loading or restructuring a sheet.
+    // Runtime: O(N + L log L) --> N: cells, L: links between them
+    public void freezeDependencies(){
+        dag.freeze();
+    }
+
+    // returns the depth of a cell: the length of the longest chain of
+    // references leading to it, 0 for a cell that references nothing
+    public int getDepth(String id){
+        return dag.level(id);
+    }
+
+    // returns the depth of the deepest cell, see getDepth
+    public int getMaxDepth(){
+        return dag.maxDepth();
+    }
+
+    // returns the number of cells at each depth, counting only cells
+    // that reference or are referenced by another
+    public int[] getDepthHistogram(){
+        return dag.levelHistogram();
+    }
+
+    // returns the cells linked to id through any chain of references in
+    // either direction, including id, in topological order. Cells in
+    // different groups never affect each other, so they can be
+    // recalculated, stored or split across sheets independently.
+    public List<String> getConnectedCells(String id){
+        return dag.connectedComponent(id);
+    }
+
+    // returns every group of cells linked by references, see
+    // getConnectedCells, largest first
+    public List<List<String>> getIndependentGroups(){
+        return dag.connectedComponents();
+    }
+
+    // returns the memory held by the cell dependencies; ids of deleted
+    // cells are released as their links go, so this shrinks along with
+    // the sheet
+    public DAG.Footprint getDependencyFootprint(){
+        return dag.footprint();
+    }
+
+    // Depth first search from the given ids following upstream links if
+    // upstream is true and downstream links otherwise. Only ids contained
+    // in within are entered (all ids if within is null). Returns the ids
+    // in post-order, so following upstream links every id comes after
+    // all of its upstream ids. The search keeps its own stack so deep
+    // dependency chains do not overflow the Java stack.
+    // Runtime: O(C + E) --> C: ids visited, E: links between them
+    protected List<String> postOrder(Collection<String> ids, boolean upstream,
+                                     Set<String> within){
+        List<String> postOrder = new ArrayList<>();
+        Set<String> visited = new HashSet<>();
+        Deque<String> nodes = new ArrayDeque<>();
+        Deque<Iterator<String>> children = new ArrayDeque<>();
+
+        for (String start : ids){
+            if ((within != null && !within.contains(start)) || !visited.add(start)){
+                continue;
+            }
+            nodes.push(start);
+            children.push(links(start, upstream).iterator());
+
+            while (!nodes.isEmpty()){
+                Iterator<String> iter = children.peek();
+                if (iter.hasNext()){
+                    String next = iter.next();
+                    if ((within == null || within.contains(next)) && visited.add(next)){
+                        nodes.push(next);
+                        children.push(links(next, upstream).iterator());
+                    }
+                } else {
+                    children.pop();
+                    postOrder.add(nodes.pop());
+                }
+            }
+        }
+
+        return postOrder;
+    }
+
+    // returns the upstream or downstream links of id
+    protected Set<String> links(String id, boolean upstream){
+        return upstream ? dag.getUpstreamLinks(id) : dag.getDownstreamLinks(id);
+    }
+
+    // Marks id and every cell downstream of it dirty. The walk stops at
+    // cells that are already dirty since everything below them is dirty
+    // too, so repeated edits to the same region cost O(1) each.
+    // Runtime: O(N) --> N: number of cells that become dirty
+    protected void markDirty(String id){
+        Deque<String> stack = new ArrayDeque<>();
+        dirty.add(id);
+        stack.push(id);
+        while (!stack.isEmpty()){
+            for (String down : dag.getDownstreamLinks(stack.pop())){
+                if (dirty.add(down)){
+                    stack.push(down);
+                }
+            }
+        }
+    }
+
+    // In lazy mode, brings id up to date by evaluating it and all of
+    // the dirty cells it depends on, upstream first. Values are kept
+    // until a later edit marks the cells dirty again.
+    // Runtime: O(U) --> U: number of dirty cells upstream of id
+    protected void evaluateIfDirty(String id){
+        if (dirty.isEmpty() || !dirty.contains(id)){
+            return;
+        }
+        List<String> order = postOrder(Collections.singleton(id), true, dirty);
+        if (dag.hasCycles()){
+            // post-order does not keep the members of a cycle together
+            order = dag.inTopologicalOrder(order);
+        }
+        evaluateInOrder(order, null);
+        for (String evaluated : order){
+            dirty.remove(evaluated);
+        }
+    }
+
+    // Sets the cells that runRecalcSlice should bring up to date first,
+    // typically the cells visible on screen
+    public void setPriorityCells(Collection<String> ids){
+        priorityCells = new LinkedHashSet<>(ids);
+    }
+
+    // returns the number of cells waiting to be evaluated in lazy mode
+    public int getDirtyCount(){
+        return dirty.size();
+    }
+
+    // Evaluates dirty cells for about budgetNanos nanoseconds and returns
+    // true if no dirty cells remain. The priority cells and the dirty
+    // cells upstream of them are evaluated first, then the rest of the
+    // dirty set. Work stops after any single cell once the budget is
+    // used up (at least one cell is evaluated per call) and resumes where
+    // it left off on the next call, so an interactive caller can keep
+    // each slice short and run the next one when it is idle. Edits made
+    // between slices are fine. Meant for lazy mode; in other modes no
+    // cells are dirty and it returns true at once.
+    // Runtime: O(S) per slice --> S: cells evaluated plus their upstream links
+    public boolean runRecalcSlice(long budgetNanos){
+        long deadline = System.nanoTime() + budgetNanos;
+        lastRecalc = new RecalcStats();
+        for (String id : priorityCells){
+            if (dirty.contains(id)){
+                sliceStack.push(id);
+            }
+        }
+
+        while (!dirty.isEmpty()){
+            if (lastRecalc.evaluated > 0 && System.nanoTime() - deadline >= 0){
+                break;
+            }
+            if (sliceStack.isEmpty()){
+                sliceStack.push(dirty.iterator().next());
+            }
+            String id = sliceStack.peek();
+            if (!dirty.contains(id)){
+                sliceStack.pop();
+                continue;
+            }
+            // cells on a cycle do not wait for each other; when cycles are
+            // solved iteratively the whole component is evaluated at once
+            // and waits for the cells upstream of any member
+            boolean circular = dag.isCircular(id);
+            List<String> unit = Collections.singletonList(id);
+            if (circular && maxIterations > 0){
+                unit = dag.circularComponent(id);
+            }
+            String dirtyUpstream = null;
+            for (String member : unit){
+                for (String up : dag.getUpstreamLinks(member)){
+                    if (dirty.contains(up) && !(circular && (maxIterations == 0 || unit.contains(up)))){
+                        dirtyUpstream = up;
+                        break;
+                    }
+                }
+            }
+            if (dirtyUpstream != null){
+                sliceStack.push(dirtyUpstream);
+                continue;
+            }
+            sliceStack.pop();
+            dirty.removeAll(unit);
+            Cell cell = cellMap.get(id);
+            if (unit.size() > 1 || (circular && maxIterations > 0)){
+                SolveComponent solve = new SolveComponent(unit);
+                solve.compute();
+                finishComponent(solve, null);
+                evaluationCount += solve.members.size() * solve.sweeps;
+            } else if (cell != null){
+                evaluate(id, cell);
+                lastRecalc.evaluated++;
+                evaluationCount++;
+            }
+        }
+
+        if (dirty.isEmpty()){
+            sliceStack.clear();
+            return true;
+        }
+        return false;
+    }
+
+    // evaluates every dirty cell in topological order
+    // Runtime: O(N + E) --> N: number of dirty cells, E: links between them
+    protected void evaluateAllDirty(){
+        if (dirty.isEmpty()){
+            return;
+        }
+        evaluateInOrder(topologicalCone(new ArrayList<>(dirty)), null);
+        dirty.clear();
+        sliceStack.clear();
+    }
+
+    // returns the number of cell evaluations performed by recalculation
+    // since the sheet was created or the count was last reset
+    public long getEvaluationCount(){
+        return evaluationCount;
+    }
+
+    // resets the evaluation counter to zero
+    public void resetEvaluationCount(){
+        evaluationCount = 0;
+    }
+
+}
@@ -691,4 +691,185 @@ public class CellTests {
     assertEquals(false        ,cell.isError());
   }
 
+  // Very deep formula trees are evaluated without recursion
+  @Test public void evalFormulaTree_deep1(){
+    int n = 200000;
+    FNode root = new FNode(TokenType.CellID,"A1",null,null);
+    for(int i=1; i<=n; i++){
+      FNode num = new FNode(TokenType.Number,"1",null,null);
+      root = new FNode(i%2==0 ? TokenType.Plus : TokenType.Minus, root, num);
+      if(i%1000==0){
+        root = new FNode(TokenType.Negate, root, null);
+      }
+    }
+    Double actual = Cell.evalFormulaTree(root,cellMap("A1","2.5"));
+    assertEquals((Double) 2.5, actual);
+  }
+
+  // Cells expose their kind both as a string and as a Kind
+  @Test public void cell_kind1(){
+    assertEquals(Cell.Kind.NUMBER , Cell.make("1.5").getKind());
+    assertEquals(Cell.Kind.STRING , Cell.make("hi").getKind());
+    assertEquals(Cell.Kind.FORMULA, Cell.make("=1+2").getKind());
+    assertEquals("formula", Cell.make("=1+2").kind());
+    Cell cell = Cell.make("2.25");
+    assertTrue(cell.hasValue());
+    assertEquals(2.25, cell.value(), 0.0);
+    assertFalse(Cell.make("=A1").hasValue());
+  }
+
+  // Once warmed up, evaluating a formula allocates nothing: values are
+  // kept as primitive doubles and the evaluation stack is reused
+  // Helper that returns the fewest bytes allocated by 100000 updates of
+  // cell, over a few rounds since the JIT may allocate a little while it
+  // compiles; -1 if allocation counting is not available
+  public static long update_allocation(Cell cell, Map<String,Cell> cellMap){
+    java.lang.management.ThreadMXBean bean = java.lang.management.ManagementFactory.getThreadMXBean();
+    if(!(bean instanceof com.sun.management.ThreadMXBean)){
+      return -1;
+    }
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+    if(!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()){
+      return -1;
+    }
+    long thread = Thread.currentThread().getId();
+    for(int i=0; i<20000; i++){
+      cell.updateValue(cellMap);
+    }
+    long allocated = Long.MAX_VALUE;
+    for(int round=0; round<3; round++){
+      long before = threads.getThreadAllocatedBytes(thread);
+      for(int i=0; i<100000; i++){
+        cell.updateValue(cellMap);
+      }
+      allocated = Math.min(allocated, threads.getThreadAllocatedBytes(thread) - before);
+    }
+    return allocated;
+  }
+
+  @Test public void cell_eval_allocation1(){
+    Map<String,Cell> cellMap = cellMap("A1","2.5","B1","4");
+    Cell cell = Cell.make("=(A1 + B1) * A1 / 2 - B1");
+    long allocated = update_allocation(cell, cellMap);
+    assertTrue(allocated+" bytes allocated", allocated < 1024);
+    assertEquals(4.125, cell.value(), 0.0);
+  }
+
+  // A reference to a missing or string cell is an error value, not an
+  // exception, so failing evaluations allocate nothing either
+  @Test public void cell_error_value1(){
+    Map<String,Cell> cellMap = cellMap("A1","2.5","B1","text");
+    Cell cell = Cell.make("=(A1 + C1) * B1");
+    cell.updateValue(cellMap);
+    assertTrue(cell.isError());
+    assertEquals("ERROR", cell.displayString());
+    assertNull(cell.numberValue());
+    assertEquals("C1 was id not set", cell.formula.error());
+    cellMap.put("C1", Cell.make("1"));
+    cell.updateValue(cellMap);
+    assertEquals("B1 was id not set", cell.formula.error());
+    long allocated = update_allocation(cell, cellMap);
+    assertTrue(allocated+" bytes allocated", allocated < 1024);
+    assertTrue(cell.isError());
+    cellMap.put("B1", Cell.make("2"));
+    cell.updateValue(cellMap);
+    assertFalse(cell.formula.failed());
+    assertNull(cell.formula.error());
+    assertEquals(7.0, cell.value(), 0.0);
+  }
+
+  // Helper that checks the scanner agrees with Double.parseDouble on s
+  public static void check_scan(Cell.NumberScanner scanner, String s){
+    Double expect;
+    try{
+      expect = Double.parseDouble(s);
+    } catch(NumberFormatException e){
+      expect = null;
+    }
+    boolean number = scanner.scan(s);
+    assertEquals(s, expect != null, number);
+    if(number){
+      assertEquals(s, Double.doubleToLongBits(expect), Double.doubleToLongBits(scanner.value));
+    }
+  }
+
+  @Test public void cell_scan1(){
+    Cell.NumberScanner scanner = new Cell.NumberScanner();
+    String[] cases = {
+      "0", "-0", "+0", "00", "1", "-1", "1.", ".5", ".", "-.", "+", "-", "1.5.2",
+      "1e5", "1E-5", "1e+5", "1e", "e5", "1e5.5", "-1.5e-3", "0.0001e4",
+      "1f", "1.5D", "1e3d", "1ff", "f", "1x",
+      "NaN", "-NaN", "+Infinity", "-Infinity", "Infinity", "nan", "Inf", "NaNd",
+      "0x1p3", "0X1.8P-1", "0x.8p1", "-0x1p3f", "0x1", "0xp3", "0x1p", "0x1.g",
+      "0.1", "0.3", "123456789012345", "1234567890123456", "12345678901234567890",
+      "9007199254740993", "1e22", "1e23", "1e-22", "1e-23", "4.9e-324", "1e-400",
+      "1.7976931348623157e308", "1e309", "1e99999999999", "0e99999999999",
+      "0.000000000000000000000000000001", "1000000000000000000000000000000",
+      "=A1", "hello", "1,000", "1_000", "\u0661",
+    };
+    for(String s : cases){
+      check_scan(scanner, s);
+    }
+    Random rand = new Random(23);
+    String alphabet = "0123456789.eE+-xXpPfFdDaNI";
+    for(int t=0; t<2000; t++){
+      StringBuilder b = new StringBuilder();
+      int length = 1 + rand.nextInt(8);
+      for(int k=0; k<length; k++){
+        b.append(alphabet.charAt(rand.nextInt(alphabet.length())));
+      }
+      check_scan(scanner, b.toString());
+      check_scan(scanner, Double.toString(Double.longBitsToDouble(rand.nextLong())));
+      check_scan(scanner, rand.nextInt(100000)+"."+rand.nextInt(100000)+"e"+(rand.nextInt(60)-30));
+    }
+  }
+
+  @Test public void cell_make_kinds1(){
+    assertEquals(Cell.Kind.NUMBER, Cell.make(" 1.5e2 ").getKind());
+    assertEquals(150.0, Cell.make(" 1.5e2 ").value(), 0.0);
+    assertEquals("1.5e2", Cell.make(" 1.5e2 ").contents());
+    assertEquals(Cell.Kind.NUMBER, Cell.make("NaN").getKind());
+    assertEquals(Cell.Kind.STRING, Cell.make("1.5e").getKind());
+    assertEquals(Cell.Kind.FORMULA, Cell.make("=1.5").getKind());
+  }
+
+  @Test public void cell_formatTenths1(){
+    double[] cases = {
+      0, -0.0, 0.05, 0.15, 0.25, -0.25, -0.04, 0.95, 9.95, 2.5, 1.0/3, -1.0/3,
+      0.049999999999999996, 0.05000000000000001, 123456.75, 999999999.95,
+      1e9, -1e12, 1e300, 4.9e-324, -4.9e-324,
+      Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+    };
+    for(double v : cases){
+      assertEquals(""+v, String.format("%.1f",v), Cell.formatTenths(v));
+    }
+    Random rand = new Random(25);
+    for(int t=0; t<1000; t++){
+      double tie = (rand.nextInt(2000000) - 1000000 + 0.5) / 10;
+      for(double v : new double[]{tie, Math.nextUp(tie), Math.nextDown(tie),
+                                  (rand.nextDouble() - 0.5) * Math.pow(10, rand.nextInt(12) - 3)}){
+        assertEquals(""+v, String.format("%.1f",v), Cell.formatTenths(v));
+      }
+    }
+  }
+
+  // The rendered number is kept until the value changes
+  @Test public void cell_display_cache1(){
+    Map<String,Cell> cellMap = cellMap("A1","2.25");
+    Cell cell = Cell.make("=A1 * 2");
+    cell.updateValue(cellMap);
+    String display = cell.displayString();
+    assertEquals("4.5", display);
+    cell.updateValue(cellMap);
+    assertSame(display, cell.displayString());
+    cellMap.put("A1", Cell.make("-0.01"));
+    cell.updateValue(cellMap);
+    assertEquals("-0.0", cell.displayString());
+    cellMap.remove("A1");
+    cell.updateValue(cellMap);
+    assertEquals("ERROR", cell.displayString());
+    cellMap.put("A1", Cell.make("2.25"));
+    cell.updateValue(cellMap);
+    assertEquals("4.5", cell.displayString());
+  }
 }
@@ -1622,6 +1622,821 @@ public class DAGTests {
       "  B1 : [A1, E1]\n"+
       "";
     checkDAGCycle(additions,expectS,expectHasCycle,expectCycles);
-  } 
- 
+  }
+
+  // addAll applies several changes with a single cycle check and undoes
+  // all of them when a cycle is introduced
+  @Test public void dag_addAll1(){
+    String expectS, expectUpstream[], expectDownstream[];
+    DAG dag = new DAG();
+    dag.add("A1",toSet("B1"));
+    Map<String,Set<String>> changes = new HashMap<String,Set<String>>();
+    changes.put("B1",toSet("C1","D1"));
+    changes.put("C1",toSet("D1"));
+    changes.put("A1",toSet("C1"));
+    dag.addAll(changes);
+    expectS =
+      "Upstream Links:\n"+
+      "  A1 : [C1]\n"+
+      "  B1 : [C1, D1]\n"+
+      "  C1 : [D1]\n"+
+      "Downstream Links:\n"+
+      "  C1 : [A1, B1]\n"+
+      "  D1 : [B1, C1]\n"+
+      "";
+    expectUpstream = new String[]{ "A1","[C1]", "D1","[]", };
+    expectDownstream = new String[]{ "B1","[]", "D1","[B1, C1]", };
+    checkDAG(dag,expectS,expectUpstream,expectDownstream);
+
+    changes.clear();
+    changes.put("B1",toSet());
+    changes.put("D1",toSet("E1"));
+    changes.put("E1",toSet("A1"));
+    boolean cycleFound = false;
+    try{
+      dag.addAll(changes);
+    }
+    catch(DAG.CycleException e){
+      cycleFound = true;
+      assertTrue(e.getMessage(), toSet("[D1, E1, A1, C1, D1]","[E1, A1, C1, D1, E1]",
+                                       "[A1, C1, D1, E1, A1]","[C1, D1, E1, A1, C1]").contains(e.getMessage()));
+    }
+    assertTrue(cycleFound);
+    checkDAG(dag,expectS,expectUpstream,expectDownstream);
+  }
+
+  // Check that every node in the DAG comes after all of its upstream
+  // links in the topological order the DAG maintains
+  public static void checkOrder(DAG dag){
+    List<String> order = dag.topologicalOrder();
+    Map<String,Integer> position = new HashMap<String,Integer>();
+    for(int i=0; i<order.size(); i++){
+      position.put(order.get(i), i);
+    }
+    for(String id : order){
+      for(String up : dag.getUpstreamLinks(id)){
+        if(position.get(up) > position.get(id)){
+          fail(String.format("%s should come before %s in %s\n%s",up,id,order,dag));
+        }
+      }
+    }
+  }
+
+  // Random additions, some of which are cycles, keep the order valid
+  @Test public void dag_topological_order1(){
+    Random rand = new Random(12345);
+    DAG dag = new DAG();
+    int cycles = 0;
+    for(int i=0; i<400; i++){
+      String id = "A"+(rand.nextInt(40)+1);
+      Set<String> ups = new HashSet<String>();
+      int n = rand.nextInt(4);
+      for(int j=0; j<n; j++){
+        ups.add("A"+(rand.nextInt(40)+1));
+      }
+      String before = sortedLines(dag.toString());
+      try{
+        dag.add(id,ups);
+      }
+      catch(DAG.CycleException e){
+        cycles++;
+        assertEquals(before, sortedLines(dag.toString()));
+      }
+      checkOrder(dag);
+    }
+    assertTrue(cycles > 0);
+  }
+
+  // Layers of diamonds have exponentially many paths; adding links and
+  // finding cycles should not enumerate them
+  @Test public void dag_deep_diamonds1(){
+    DAG dag = new DAG();
+    int layers = 60;
+    for(int k=1; k<=layers; k++){
+      dag.add("B"+k, toSet("A"+k));
+      dag.add("C"+k, toSet("A"+k));
+      dag.add("A"+(k+1), toSet("B"+k,"C"+k));
+    }
+    checkOrder(dag);
+    String bottom = "A"+(layers+1);
+    boolean cycleFound = false;
+    try{
+      dag.add("A1", toSet("X1", bottom));
+    }
+    catch(DAG.CycleException e){
+      cycleFound = true;
+      String msg = e.getMessage();
+      assertTrue(msg, msg.startsWith("[A1, "+bottom+", "));
+      assertTrue(msg, msg.endsWith(", A1]"));
+    }
+    assertTrue(cycleFound);
+    assertEquals(EMPTY_SET, dag.getUpstreamLinks("A1"));
+    assertEquals(EMPTY_SET, dag.getDownstreamLinks("X1"));
+    // a link from the bottom to a new node is fine
+    dag.add("Z1", toSet(bottom, "A1"));
+    checkOrder(dag);
+  }
+
+  // The int sets behind the links agree with a HashSet through
+  // growth and removals
+  @Test public void dag_intset1(){
+    Random rand = new Random(7);
+    DAG.IntSet set = new DAG.IntSet();
+    Set<Integer> expect = new HashSet<Integer>();
+    for(int i=0; i<20000; i++){
+      int value = rand.nextInt(300);
+      if(rand.nextInt(3) == 0){
+        assertEquals(expect.remove(value), set.remove(value));
+      }
+      else{
+        assertEquals(expect.add(value), set.add(value));
+      }
+      assertEquals(expect.size(), set.size);
+    }
+    for(int value=0; value<300; value++){
+      assertEquals(expect.contains(value), set.contains(value));
+    }
+  }
+
+  // Link sets are views that follow later changes; looking up unknown
+  // ids does not add them
+  @Test public void dag_link_views1(){
+    DAG dag = new DAG();
+    dag.add("A1",toSet("B1","C1"));
+    Set<String> ups = dag.getUpstreamLinks("A1");
+    Set<String> downs = dag.getDownstreamLinks("B1");
+    assertEquals(toSet("B1","C1"), ups);
+    assertEquals(toSet("A1"), downs);
+    dag.add("A1",toSet("C1","D1"));
+    assertEquals(toSet("C1","D1"), ups);
+    assertEquals(EMPTY_SET, downs);
+    assertTrue(ups.contains("D1"));
+    assertFalse(ups.contains("B1"));
+    assertFalse(ups.contains("X9"));
+    int ids = dag.names.size();
+    dag.getUpstreamLinks("X9");
+    dag.getDownstreamLinks("Y9");
+    assertEquals(ids, dag.names.size());
+  }
+
+  // A frozen DAG with later additions, removals and cycles on top
+  // agrees with a DAG that was never frozen
+  @Test public void dag_freeze1(){
+    Random rand = new Random(99);
+    DAG plain = new DAG();
+    DAG frozen = new DAG();
+    int cycles = 0;
+    for(int i=0; i<600; i++){
+      String id = "A"+(rand.nextInt(40)+1);
+      Set<String> ups = new HashSet<String>();
+      int n = rand.nextInt(4);
+      for(int j=0; j<n; j++){
+        ups.add("A"+(rand.nextInt(40)+1));
+      }
+      boolean plainCycle = false, frozenCycle = false;
+      try{ plain.add(id,ups); }
+      catch(DAG.CycleException e){ plainCycle = true; }
+      try{ frozen.add(id,ups); }
+      catch(DAG.CycleException e){ frozenCycle = true; }
+      assertEquals(plainCycle, frozenCycle);
+      if(plainCycle){
+        cycles++;
+      }
+      if(i % 50 == 0){
+        frozen.freeze();
+      }
+      if(i % 10 == 0){
+        assertEquals(sortedLines(plain.toString()), sortedLines(frozen.toString()));
+        checkOrder(frozen);
+      }
+    }
+    assertTrue(frozen.isFrozen());
+    assertTrue(cycles > 0);
+    for(int k=1; k<=40; k++){
+      assertEquals(plain.getUpstreamLinks("A"+k), frozen.getUpstreamLinks("A"+k));
+      assertEquals(plain.getDownstreamLinks("A"+k), frozen.getDownstreamLinks("A"+k));
+      assertEquals(new HashSet<String>(plain.downstreamCone(toSet("A"+k))),
+                   new HashSet<String>(frozen.downstreamCone(toSet("A"+k))));
+    }
+  }
+
+  // Changes on top of a frozen DAG are merged back once they grow
+  @Test public void dag_freeze_merge1(){
+    DAG dag = new DAG();
+    for(int i=1; i<=100; i++){
+      dag.add("B"+i, toSet("A"+i));
+    }
+    dag.freeze();
+    assertEquals(0, dag.deltaLinks);
+    dag.add("B1", toSet("A2"));
+    assertEquals(2, dag.deltaLinks);
+    dag.add("B1", toSet("A1"));
+    assertEquals(0, dag.deltaLinks);
+    for(int i=1; i<=DAG.MIN_DELTA+1; i++){
+      dag.add("C"+i, toSet("B1"));
+    }
+    assertTrue(dag.deltaLinks <= DAG.MIN_DELTA);
+    assertEquals(DAG.MIN_DELTA+1, dag.getDownstreamLinks("B1").size());
+    checkOrder(dag);
+  }
+
+  // Ids left without links are released and their node numbers reused
+  @Test public void dag_gc1(){
+    DAG dag = new DAG();
+    dag.add("B1", toSet("A1"));
+    dag.add("C1", toSet("B1"));
+    Set<String> view = dag.getUpstreamLinks("C1");
+    int a1 = dag.nodeNumber("A1");
+    dag.remove("B1");
+    assertEquals(-1, dag.nodeNumber("A1"));
+    assertEquals(2, dag.footprint().nodes);
+    assertEquals(1, dag.footprint().freeNodes);
+    dag.add("D1", toSet("E1"));
+    assertEquals(0, dag.footprint().freeNodes);
+    assertTrue(dag.nodeNumber("D1") == a1 || dag.nodeNumber("E1") == a1);
+    assertEquals(toSet("B1"), view);
+    dag.remove("C1");
+    assertEquals(0, view.size());
+    assertFalse(dag.topologicalOrder().contains("B1"));
+    dag.remove("D1");
+    assertEquals(0, dag.footprint().nodes);
+    assertEquals(0, dag.footprint().links);
+    assertEquals("Upstream Links:\nDownstream Links:\n", dag.toString());
+  }
+
+  // Removed frozen links hold their nodes until the next freeze
+  @Test public void dag_gc_frozen1(){
+    DAG dag = new DAG();
+    for(int i=1; i<=100; i++){
+      dag.add("B"+i, toSet("A"+i));
+    }
+    dag.freeze();
+    dag.remove("B1");
+    assertEquals(0, dag.getDownstreamLinks("A1").size());
+    assertEquals(200, dag.footprint().nodes);
+    dag.freeze();
+    assertEquals(198, dag.footprint().nodes);
+    assertEquals(-1, dag.nodeNumber("A1"));
+    dag.add("B2", toSet("A1"));
+    assertEquals(toSet("A1"), dag.getUpstreamLinks("B2"));
+    checkOrder(dag);
+  }
+
+  // Once most nodes are gone the tables are renumbered and shrunk;
+  // views, order and the frozen form survive
+  @Test public void dag_compact1(){
+    DAG dag = new DAG();
+    int n = DAG.COMPACT_MIN * 2;
+    for(int i=1; i<=n; i++){
+      dag.add("B"+i, toSet("A"+i, "A"+(i+1)));
+    }
+    dag.add("C1", toSet("B1", "B"+n));
+    dag.freeze();
+    Set<String> view = dag.getUpstreamLinks("C1");
+    long before = dag.footprint().bytes;
+    for(int i=2; i<n; i++){
+      dag.remove("B"+i);
+    }
+    dag.freeze();
+    DAG.Footprint after = dag.footprint();
+    assertEquals(7, after.nodes);
+    assertEquals(6, after.links);
+    assertTrue(after.toString(), after.bytes * 10 < before);
+    dag.compact();
+    assertEquals(0, dag.footprint().freeNodes);
+    assertTrue(dag.isFrozen());
+    assertEquals(toSet("B1", "B"+n), view);
+    assertEquals(toSet("A1", "A2"), dag.getUpstreamLinks("B1"));
+    assertEquals(Arrays.asList("B"+n, "C1"), dag.downstreamCone(Arrays.asList("B"+n)));
+    checkOrder(dag);
+    try{
+      dag.add("A1", toSet("C1"));
+      fail("Cycle not detected after compacting");
+    }catch(DAG.CycleException e){ }
+  }
+
+  // replaceUpstream only changes links that differ; an id that was
+  // never linked and has no upstream links is not added at all
+  @Test public void dag_replaceUpstream1(){
+    String expectS, expectUpstream[], expectDownstream[];
+    DAG dag = new DAG();
+    dag.replaceUpstream("A1",toSet("B1","C1"));
+    dag.replaceUpstream("A1",toSet("C1","D1"));
+    dag.replaceUpstream("X1",toSet());
+    expectS =
+      "Upstream Links:\n"+
+      "  A1 : [C1, D1]\n"+
+      "Downstream Links:\n"+
+      "  C1 : [A1]\n"+
+      "  D1 : [A1]\n"+
+      "";
+    expectUpstream = new String[]{ "A1","[C1, D1]", "X1","[]", };
+    expectDownstream = new String[]{ "B1","[]", "D1","[A1]", };
+    checkDAG(dag,expectS,expectUpstream,expectDownstream);
+    assertFalse(dag.topologicalOrder().contains("X1"));
+
+    dag.replaceUpstream("A1",toSet());
+    checkDAG(dag,"Upstream Links:\nDownstream Links:\n",
+             new String[]{ "A1","[]", },
+             new String[]{ "C1","[]", });
+  }
+
+  // Links can be added and removed in bulk; a cycle undoes every link
+  // of the call
+  @Test public void dag_add_remove_edges1(){
+    String expectS, expectUpstream[], expectDownstream[];
+    DAG dag = new DAG();
+    dag.add("A1",toSet("B1"));
+    Map<String,Set<String>> edges = new HashMap<String,Set<String>>();
+    edges.put("A1",toSet("B1","C1"));
+    edges.put("C1",toSet("D1"));
+    dag.addEdges(edges);
+    expectS =
+      "Upstream Links:\n"+
+      "  A1 : [B1, C1]\n"+
+      "  C1 : [D1]\n"+
+      "Downstream Links:\n"+
+      "  B1 : [A1]\n"+
+      "  C1 : [A1]\n"+
+      "  D1 : [C1]\n"+
+      "";
+    expectUpstream = new String[]{ "A1","[B1, C1]", "C1","[D1]", };
+    expectDownstream = new String[]{ "D1","[C1]", };
+    checkDAG(dag,expectS,expectUpstream,expectDownstream);
+
+    edges.clear();
+    edges.put("B1",toSet("E1"));
+    edges.put("D1",toSet("A1"));
+    boolean cycleFound = false;
+    try{
+      dag.addEdges(edges);
+    }
+    catch(DAG.CycleException e){
+      cycleFound = true;
+    }
+    assertTrue(cycleFound);
+    checkDAG(dag,expectS,expectUpstream,expectDownstream);
+    checkOrder(dag);
+
+    edges.clear();
+    edges.put("A1",toSet("C1","X1"));
+    edges.put("Y1",toSet("D1"));
+    dag.removeEdges(edges);
+    expectS =
+      "Upstream Links:\n"+
+      "  A1 : [B1]\n"+
+      "  C1 : [D1]\n"+
+      "Downstream Links:\n"+
+      "  B1 : [A1]\n"+
+      "  D1 : [C1]\n"+
+      "";
+    expectUpstream = new String[]{ "A1","[B1]", };
+    expectDownstream = new String[]{ "C1","[]", };
+    checkDAG(dag,expectS,expectUpstream,expectDownstream);
+  }
+
+  // Brute force closure for checking the transitive queries
+  public static Set<String> reachable(DAG dag, String id, boolean upstream){
+    Set<String> found = new HashSet<String>();
+    Deque<String> stack = new ArrayDeque<String>();
+    stack.push(id);
+    while(!stack.isEmpty()){
+      String at = stack.pop();
+      Set<String> links = upstream ? dag.getUpstreamLinks(at) : dag.getDownstreamLinks(at);
+      for(String next : links){
+        if(found.add(next)){
+          stack.push(next);
+        }
+      }
+    }
+    return found;
+  }
+
+  // Cached closures stay correct as links are added and removed
+  @Test public void dag_transitive1(){
+    Random rand = new Random(2024);
+    DAG dag = new DAG();
+    for(int i=0; i<500; i++){
+      String id = "A"+(rand.nextInt(50)+1);
+      Set<String> ups = new HashSet<String>();
+      int n = rand.nextInt(4);
+      for(int j=0; j<n; j++){
+        ups.add("A"+(rand.nextInt(50)+1));
+      }
+      try{
+        dag.add(id,ups);
+      }
+      catch(DAG.CycleException e){
+      }
+      if(i == 250){
+        dag.freeze();
+      }
+      for(int q=0; q<3; q++){
+        String query = "A"+(rand.nextInt(50)+1);
+        assertEquals(reachable(dag, query, true),
+                     new HashSet<String>(dag.idsOf(dag.transitiveUpstream(query))));
+        assertEquals(reachable(dag, query, false),
+                     new HashSet<String>(dag.idsOf(dag.transitiveDownstream(query))));
+      }
+    }
+    assertEquals(0, dag.transitiveUpstream("nope").cardinality());
+    assertEquals(-1, dag.nodeNumber("nope"));
+  }
+
+  // A simple chain: closures follow edits to the middle of the chain
+  @Test public void dag_transitive2(){
+    DAG dag = new DAG();
+    dag.add("B1",toSet("A1"));
+    dag.add("C1",toSet("B1"));
+    dag.add("D1",toSet("C1"));
+    assertEquals(toSet("A1","B1","C1"), new HashSet<String>(dag.idsOf(dag.transitiveUpstream("D1"))));
+    assertEquals(toSet("B1","C1","D1"), new HashSet<String>(dag.idsOf(dag.transitiveDownstream("A1"))));
+    BitSet closure = dag.transitiveDownstream("A1");
+    closure.clear();
+    dag.add("C1",toSet());
+    assertEquals(toSet("C1"), new HashSet<String>(dag.idsOf(dag.transitiveUpstream("D1"))));
+    assertEquals(toSet("B1"), new HashSet<String>(dag.idsOf(dag.transitiveDownstream("A1"))));
+    dag.add("C1",toSet("A1"));
+    assertEquals(toSet("A1","C1"), new HashSet<String>(dag.idsOf(dag.transitiveUpstream("D1"))));
+    assertEquals(toSet("B1","C1","D1"), new HashSet<String>(dag.idsOf(dag.transitiveDownstream("A1"))));
+  }
+
+  // Cycles can be allowed: the links are kept, the circular ids are
+  // found, and once the cycles are gone cycle checks resume
+  @Test public void dag_allow_cycles1(){
+    DAG dag = new DAG();
+    dag.setAllowCycles(true);
+    dag.add("A1",toSet("B1"));
+    dag.add("B1",toSet("C1"));
+    dag.add("C1",toSet("A1"));
+    dag.add("D1",toSet("A1"));
+    dag.add("E1",toSet("E1"));
+    dag.add("F1",toSet("G1"));
+    assertTrue(dag.isCircular("A1"));
+    assertTrue(dag.isCircular("C1"));
+    assertFalse(dag.isCircular("D1"));
+    assertTrue(dag.isCircular("E1"));
+    assertFalse(dag.isCircular("F1"));
+    List<List<String>> components = dag.circularComponents();
+    assertEquals(2, components.size());
+    Set<Set<String>> actual = new HashSet<Set<String>>();
+    for(List<String> component : components){
+      actual.add(new HashSet<String>(component));
+    }
+    assertEquals(new HashSet<Set<String>>(Arrays.asList(toSet("A1","B1","C1"), toSet("E1"))), actual);
+    List<String> order = dag.topologicalOrder();
+    assertTrue(order.indexOf("A1") < order.indexOf("D1"));
+    assertTrue(order.indexOf("G1") < order.indexOf("F1"));
+    assertEquals(toSet("A1","B1","C1","D1"), new HashSet<String>(dag.downstreamCone(toSet("B1"))));
+
+    dag.add("C1",toSet());
+    dag.add("E1",toSet());
+    assertFalse(dag.isCircular("A1"));
+    assertEquals(0, dag.circularComponents().size());
+    checkOrder(dag);
+    dag.setAllowCycles(false);
+    boolean cycleFound = false;
+    try{
+      dag.add("C1",toSet("D1"));
+    }
+    catch(DAG.CycleException e){
+      cycleFound = true;
+    }
+    assertTrue(cycleFound);
+    checkOrder(dag);
+  }
+
+  // Random links with cycles allowed: every id is circular exactly when
+  // it can reach itself
+  @Test public void dag_allow_cycles2(){
+    Random rand = new Random(31);
+    DAG dag = new DAG();
+    dag.setAllowCycles(true);
+    for(int i=0; i<300; i++){
+      String id = "A"+(rand.nextInt(60)+1);
+      Set<String> ups = new HashSet<String>();
+      int n = rand.nextInt(3);
+      for(int j=0; j<n; j++){
+        ups.add("A"+(rand.nextInt(60)+1));
+      }
+      dag.add(id,ups);
+      if(i % 20 == 0){
+        for(int k=1; k<=60; k++){
+          String query = "A"+k;
+          assertEquals(query, reachable(dag, query, false).contains(query), dag.isCircular(query));
+        }
+      }
+    }
+  }
+
+  // Once the cycles are known, a link that joins a node to an existing
+  // cycle, or joins two cycles, updates the components; links that do
+  // not close a cycle leave them as they are
+  @Test public void dag_allow_cycles_join1(){
+    DAG dag = new DAG();
+    dag.setAllowCycles(true);
+    dag.add("A1",toSet("B1"));
+    dag.add("B1",toSet("C1"));
+    dag.add("C1",toSet("A1"));
+    dag.add("D1",toSet("A1"));
+    dag.add("E1",toSet("F1"));
+    dag.add("F1",toSet("E1"));
+    assertEquals(2, dag.circularComponents().size());
+    assertFalse(dag.isCircular("D1"));
+
+    dag.add("G1",toSet("D1"));
+    dag.add("C1",toSet("A1","H1"));
+    assertEquals(toSet("A1","B1","C1"), new HashSet<String>(dag.circularComponent("A1")));
+    assertFalse(dag.isCircular("G1"));
+
+    dag.add("B1",toSet("C1","D1"));
+    assertTrue(dag.isCircular("D1"));
+    assertEquals(toSet("A1","B1","C1","D1"), new HashSet<String>(dag.circularComponent("C1")));
+
+    dag.add("E1",toSet("F1","G1"));
+    dag.add("A1",toSet("B1","F1"));
+    assertEquals(1, dag.circularComponents().size());
+    assertEquals(toSet("A1","B1","C1","D1","E1","F1","G1"), new HashSet<String>(dag.circularComponent("E1")));
+    assertFalse(dag.isCircular("H1"));
+  }
+
+  // A long chain closed into one big cycle is found without deep
+  // recursion
+  @Test public void dag_allow_cycles_deep1(){
+    DAG dag = new DAG();
+    dag.setAllowCycles(true);
+    int n = 20000;
+    Map<String,Set<String>> changes = new HashMap<String,Set<String>>();
+    for(int i=2; i<=n; i++){
+      changes.put("A"+i, toSet("A"+(i-1)));
+    }
+    changes.put("A1", toSet("A"+n));
+    dag.addAll(changes);
+    assertTrue(dag.isCircular("A1"));
+    assertEquals(1, dag.circularComponents().size());
+    assertEquals(n, dag.circularComponents().get(0).size());
+  }
+
+  // Levels of every linked id computed from scratch, for comparison
+  public static Map<String,Integer> levels(DAG dag){
+    Map<String,Integer> levels = new HashMap<String,Integer>();
+    for(String id : dag.topologicalOrder()){
+      int level = 0;
+      for(String up : dag.getUpstreamLinks(id)){
+        level = Math.max(level, levels.get(up)+1);
+      }
+      levels.put(id, level);
+    }
+    return levels;
+  }
+
+  @Test public void dag_levels1(){
+    DAG dag = new DAG();
+    assertEquals(0, dag.maxDepth());
+    assertEquals(0, dag.levelHistogram().length);
+    dag.add("B1", toSet("A1"));
+    dag.add("C1", toSet("B1"));
+    dag.add("D1", toSet("C1", "A1"));
+    assertEquals(0, dag.level("A1"));
+    assertEquals(3, dag.level("D1"));
+    assertEquals(0, dag.level("Z9"));
+    assertEquals(3, dag.maxDepth());
+    assertArrayEquals(new int[]{1,1,1,1}, dag.levelHistogram());
+    dag.add("C1", toSet("A1"));
+    assertEquals(1, dag.level("C1"));
+    assertEquals(2, dag.level("D1"));
+    assertEquals(2, dag.maxDepth());
+    assertArrayEquals(new int[]{1,2,1}, dag.levelHistogram());
+    dag.add("A1", toSet("X1"));
+    assertEquals(3, dag.level("D1"));
+    dag.remove("D1");
+    dag.remove("C1");
+    dag.remove("B1");
+    assertEquals(1, dag.maxDepth());
+    assertArrayEquals(new int[]{1,1}, dag.levelHistogram());
+  }
+
+  // Levels stay equal to a recomputation through random changes,
+  // frozen or not
+  @Test public void dag_levels_random1(){
+    Random random = new Random(18);
+    DAG dag = new DAG();
+    int n = 2000;
+    for(int i=1; i<n; i++){
+      dag.add("A"+i, toSet("A"+random.nextInt(i)));
+    }
+    for(int round=0; round<300; round++){
+      if(round == 150){
+        dag.freeze();
+      }
+      String id = "A"+random.nextInt(n);
+      Set<String> ups = new HashSet<String>();
+      for(int k=random.nextInt(4); k>0; k--){
+        ups.add("A"+random.nextInt(n));
+      }
+      try{
+        dag.add(id, ups);
+      }catch(DAG.CycleException e){ }
+      if(round % 10 == 0){
+        dag.remove("A"+random.nextInt(n));
+      }
+      if(round % 15 != 0){
+        // keeps the update after each change small
+        dag.level(id);
+        continue;
+      }
+      Map<String,Integer> expect = levels(dag);
+      int max = 0;
+      for(String node : expect.keySet()){
+        assertEquals(node, (int) expect.get(node), dag.level(node));
+        max = Math.max(max, expect.get(node));
+      }
+      assertEquals(max, dag.maxDepth());
+      int total = 0;
+      for(int count : dag.levelHistogram()){
+        total += count;
+      }
+      assertEquals(expect.size(), total);
+    }
+  }
+
+  // Cells on a cycle share a level one above what leads into the cycle
+  @Test public void dag_levels_cycles1(){
+    DAG dag = new DAG();
+    dag.setAllowCycles(true);
+    dag.add("B1", toSet("A1", "C1"));
+    dag.add("C1", toSet("B1"));
+    dag.add("D1", toSet("C1"));
+    dag.add("E1", toSet("E1"));
+    assertEquals(1, dag.level("B1"));
+    assertEquals(1, dag.level("C1"));
+    assertEquals(2, dag.level("D1"));
+    assertEquals(0, dag.level("E1"));
+    dag.add("A1", toSet("X1"));
+    assertEquals(2, dag.level("C1"));
+    assertEquals(3, dag.level("D1"));
+    dag.add("C1", toSet());
+    assertEquals(2, dag.level("B1"));
+    assertEquals(0, dag.level("C1"));
+    assertEquals(1, dag.level("D1"));
+    assertArrayEquals(new int[]{3,2,1}, dag.levelHistogram());
+  }
+
+  @Test public void dag_connected1(){
+    DAG dag = new DAG();
+    assertEquals(0, dag.connectedComponentCount());
+    dag.add("B1", toSet("A1"));
+    dag.add("B2", toSet("A2"));
+    dag.add("C1", toSet("B1", "B2"));
+    dag.add("E1", toSet("D1"));
+    assertEquals(2, dag.connectedComponentCount());
+    assertEquals(5, dag.connectedComponentSize("A1"));
+    assertEquals(1, dag.connectedComponentSize("Z1"));
+    assertTrue(dag.isConnected("A1", "A2"));
+    assertFalse(dag.isConnected("A1", "D1"));
+    assertFalse(dag.isConnected("A1", "Z1"));
+    assertEquals(toSet("A1","A2","B1","B2","C1"), new HashSet<String>(dag.connectedComponent("B2")));
+    assertEquals(Arrays.asList("Z1"), dag.connectedComponent("Z1"));
+    List<List<String>> parts = dag.connectedComponents();
+    assertEquals(2, parts.size());
+    assertEquals(5, parts.get(0).size());
+    assertEquals(Arrays.asList("D1", "E1"), parts.get(1));
+
+    // removing a link splits a component
+    dag.add("C1", toSet("B1"));
+    assertEquals(3, dag.connectedComponentCount());
+    assertEquals(3, dag.connectedComponentSize("C1"));
+    assertFalse(dag.isConnected("A1", "A2"));
+    dag.add("E1", toSet("C1"));
+    assertEquals(2, dag.connectedComponentCount());
+    assertEquals(4, dag.connectedComponentSize("E1"));
+    assertEquals(Arrays.asList("A1", "B1", "C1", "E1"), dag.connectedComponents().get(0));
+  }
+
+  // Connected components stay equal to a search from scratch through
+  // random changes
+  @Test public void dag_connected_random1(){
+    Random random = new Random(19);
+    DAG dag = new DAG();
+    for(int round=0; round<300; round++){
+      String id = "A"+random.nextInt(80);
+      Set<String> ups = new HashSet<String>();
+      for(int k=random.nextInt(3); k>0; k--){
+        ups.add("A"+random.nextInt(80));
+      }
+      try{
+        dag.add(id, ups);
+      }catch(DAG.CycleException e){ }
+      if(round % 7 == 0){
+        dag.remove("A"+random.nextInt(80));
+      }
+      Set<String> left = new HashSet<String>(dag.topologicalOrder());
+      int count = 0;
+      while(!left.isEmpty()){
+        String start = left.iterator().next();
+        Set<String> part = new HashSet<String>();
+        Deque<String> pending = new ArrayDeque<String>(Arrays.asList(start));
+        while(!pending.isEmpty()){
+          String next = pending.pop();
+          if(part.add(next)){
+            pending.addAll(dag.getUpstreamLinks(next));
+            pending.addAll(dag.getDownstreamLinks(next));
+          }
+        }
+        left.removeAll(part);
+        count++;
+        assertEquals(part.size(), dag.connectedComponentSize(start));
+        for(String member : part){
+          assertTrue(dag.isConnected(start, member));
+        }
+      }
+      assertEquals(count, dag.connectedComponentCount());
+    }
+  }
+
+  @Test public void dag_fanout1(){
+    DAG dag = new DAG();
+    for(int i=1; i<DAG.HIGH_FAN_OUT; i++){
+      dag.add("B"+i, toSet("A1"));
+    }
+    assertFalse(dag.isHighFanOut("A1"));
+    dag.add("C1", toSet("A1", "B1"));
+    assertTrue(dag.isHighFanOut("A1"));
+    assertFalse(dag.isHighFanOut("B1"));
+    assertFalse(dag.isHighFanOut("Z1"));
+    dag.freeze();
+    assertTrue(dag.isHighFanOut("A1"));
+    assertTrue(dag.getDownstreamLinks("A1").contains("C1"));
+  }
+
+  // Checks that cone holds exactly the given ids and every id
+  // downstream of them, each once and after its upstream links
+  public static void check_cone(DAG dag, List<String> starts, List<String> cone){
+    Set<String> expected = new HashSet<String>(starts);
+    for(String start : starts){
+      expected.addAll(reachable(dag, start, false));
+    }
+    assertEquals(expected.size(), cone.size());
+    assertEquals(expected, new HashSet<String>(cone));
+    Map<String,Integer> position = new HashMap<String,Integer>();
+    for(int i=0; i<cone.size(); i++){
+      position.put(cone.get(i), i);
+    }
+    for(String id : cone){
+      for(String up : dag.getUpstreamLinks(id)){
+        if(position.containsKey(up)){
+          assertTrue(up+" before "+id, position.get(up) < position.get(id));
+        }
+      }
+    }
+  }
+
+  // Cones through high fan-out nodes, whose links are kept sorted
+  // between calls, stay in topological order as links change
+  @Test public void dag_fanout_cone1(){
+    DAG dag = new DAG();
+    int n = DAG.HIGH_FAN_OUT + 10;
+    for(int i=1; i<=n; i++){
+      dag.add("B"+i, toSet("A1"));
+      dag.add("C"+i, toSet("B1"));
+    }
+    for(int i=1; i<=50; i++){
+      dag.add("D"+i, toSet("B"+(i*7), "C"+(i*3), "X1"));
+    }
+    List<String> starts = Arrays.asList("A1", "X1");
+    check_cone(dag, starts, dag.downstreamCone(starts));
+    check_cone(dag, Arrays.asList("X1", "B1"), dag.downstreamCone(Arrays.asList("X1", "B1")));
+
+    // links that move the dependents of A1 to new positions
+    dag.add("B5", toSet("A1", "D40"));
+    dag.add("B9", toSet("A1", "C"+n));
+    check_cone(dag, starts, dag.downstreamCone(starts));
+    dag.add("B20", toSet());
+    dag.add("E1", toSet("A1", "D3"));
+    check_cone(dag, starts, dag.downstreamCone(starts));
+    dag.freeze();
+    dag.add("B22", toSet("E1"));
+    check_cone(dag, starts, dag.downstreamCone(starts));
+  }
+
+  // Levels within a topological order count only links between its ids
+  @Test public void dag_levelsWithin1(){
+    DAG dag = new DAG();
+    dag.add("B1", toSet("A1"));
+    dag.add("C1", toSet("B1", "A1"));
+    dag.add("D1", toSet("X1"));
+    dag.add("E1", toSet("C1", "D1"));
+    List<String> order = dag.downstreamCone(Arrays.asList("B1", "D1"));
+    int[] levels = dag.levelsWithin(order);
+    Map<String,Integer> levelOf = new HashMap<String,Integer>();
+    for(int i=0; i<levels.length; i++){
+      levelOf.put(order.get(i), levels[i]);
+    }
+    assertEquals((Integer) 0, levelOf.get("B1"));
+    assertEquals((Integer) 0, levelOf.get("D1"));
+    assertEquals((Integer) 1, levelOf.get("C1"));
+    assertEquals((Integer) 2, levelOf.get("E1"));
+    assertArrayEquals(new int[]{0, 0}, dag.levelsWithin(Arrays.asList("Q1", "B1")));
+  }
+
 }
@@ -89,14 +89,18 @@ public class SpreadsheetTests {
       Arrays.sort(ulinksLines);
       sorted.append(ulinks);
       for(String u : ulinksLines){
-        sorted.append(sortLine(u)); sorted.append('\n');
+        if(!u.isEmpty()){       // no links at all
+          sorted.append(sortLine(u)); sorted.append('\n');
+        }
       }
 
       String [] dlinksLines = s.substring(dlinksIdx+dlinks.length(), s.length()).split("\n");
       Arrays.sort(dlinksLines);
       sorted.append(dlinks);
       for(String d : dlinksLines){
-        sorted.append(sortLine(d)); sorted.append('\n');
+        if(!d.isEmpty()){
+          sorted.append(sortLine(d)); sorted.append('\n');
+        }
       }
 
       return sorted.toString();
@@ -1972,4 +1976,1049 @@ public class SpreadsheetTests {
       "";
     test_spreadsheet(sheet2, expect);
   }
+
+  // Build layers of "diamonds" where each layer input feeds two
+  // branches that rejoin into the next layer's input:
+  //   Bk = Ak + 1, Ck = Ak * 2, A(k+1) = Bk + Ck
+  // Returns the expected value of the final A cell when A1 is 1.
+  public static double build_diamonds(Spreadsheet sheet, int layers){
+    double expect = 1.0;
+    sheet.setCell("A1","1");
+    for(int k=1; k<=layers; k++){
+      sheet.setCell("B"+k, "=A"+k+" + 1");
+      sheet.setCell("C"+k, "=A"+k+" * 2");
+      sheet.setCell("A"+(k+1), "=B"+k+" + C"+k);
+      expect = (expect+1) + (expect*2);
+    }
+    return expect;
+  }
+
+  // Each cell downstream of an edit should be evaluated exactly once,
+  // not once per path through the diamonds
+  @Test public void sheet_recalc_once_per_cell1(){
+    Spreadsheet sheet = new Spreadsheet();
+    int layers = 12;
+    build_diamonds(sheet, layers);
+    sheet.resetEvaluationCount();
+    sheet.setCell("A1","2");
+    // A1 itself plus three cells per layer
+    assertEquals(1 + 3*layers, sheet.getEvaluationCount());
+    double expect = 2.0;
+    for(int k=1; k<=layers; k++){
+      expect = (expect+1) + (expect*2);
+    }
+    assertEquals(String.format("%.1f",expect), sheet.getCellDisplayString("A"+(layers+1)));
+  }
+  @Test public void sheet_recalc_once_per_cell2(){
+    Spreadsheet sheet = new Spreadsheet();
+    int layers = 12;
+    double expect = build_diamonds(sheet, layers);
+    assertEquals(String.format("%.1f",expect), sheet.getCellDisplayString("A"+(layers+1)));
+    sheet.resetEvaluationCount();
+    sheet.setCell("A5","=B4 + C4 + 1");
+    // only the cone below A5 is evaluated
+    assertEquals(1 + 3*(layers-4), sheet.getEvaluationCount());
+    sheet.resetEvaluationCount();
+    sheet.deleteCell("A1");
+    assertEquals(3*layers, sheet.getEvaluationCount());
+    assertEquals("ERROR", sheet.getCellDisplayString("A"+(layers+1)));
+  }
+
+  // In lazy mode edits only mark cells dirty; reads evaluate exactly
+  // the dirty cells they depend on
+  @Test public void sheet_lazy_eval1(){
+    Spreadsheet sheet = new Spreadsheet(true);
+    int layers = 12;
+    double expect = build_diamonds(sheet, layers);
+    assertEquals(0, sheet.getEvaluationCount());
+    assertEquals(String.format("%.1f",expect), sheet.getCellDisplayString("A"+(layers+1)));
+    assertEquals(1 + 3*layers, sheet.getEvaluationCount());
+
+    // repeated writes do no evaluation work
+    sheet.resetEvaluationCount();
+    for(int i=0; i<100; i++){
+      sheet.setCell("A1",""+i);
+    }
+    assertEquals(0, sheet.getEvaluationCount());
+
+    // reading a cell evaluates only its dirty upstream cells
+    assertEquals((Double) 99.0, sheet.getCellValue("A1"));
+    assertEquals(1, sheet.getEvaluationCount());
+    assertEquals((Double) 100.0, sheet.getCellValue("B1"));
+    assertEquals(2, sheet.getEvaluationCount());
+    assertEquals((Double) 100.0, sheet.getCellValue("B1"));
+    assertEquals(2, sheet.getEvaluationCount());
+    assertEquals((Double) 298.0, sheet.getCellValue("A2"));
+    assertEquals(4, sheet.getEvaluationCount());
+  }
+  @Test public void sheet_lazy_eval2(){
+    Spreadsheet eager = new Spreadsheet();
+    Spreadsheet lazy = new Spreadsheet(true);
+    for(Spreadsheet sheet : new Spreadsheet[]{eager, lazy}){
+      sheet.setCell("A1","=B1 + C1");
+      sheet.setCell("B1","=C1 * 2");
+      sheet.setCell("C1","5");
+      sheet.setCell("D1","=A1 - C1");
+      sheet.setCell("E1","words");
+      sheet.setCell("F1","=E1 + 1");
+      sheet.deleteCell("C1");
+      sheet.setCell("C1","7");
+    }
+    assertEquals("21.0", lazy.getCellDisplayString("A1"));
+    assertEquals("ERROR", lazy.getCellDisplayString("F1"));
+    test_spreadsheet(lazy, eager.toString());
+    lazy.setCell("C1","1");
+    lazy.setLazy(false);
+    // turning lazy mode off brings all cells up to date
+    lazy.resetEvaluationCount();
+    assertEquals("3.0", lazy.getCellDisplayString("A1"));
+    assertEquals(0, lazy.getEvaluationCount());
+    eager.setCell("C1","1");
+    test_spreadsheet(lazy, eager.toString());
+    lazy.setCell("C1","2");
+    assertEquals("6.0", lazy.getCellDisplayString("A1"));
+  }
+
+  // Parallel recalculation produces the same values as sequential
+  // recalculation, evaluating each affected cell once
+  @Test public void sheet_parallel_recalc1(){
+    Spreadsheet seq = new Spreadsheet();
+    Spreadsheet par = new Spreadsheet();
+    java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(4);
+    par.setParallelRecalc(pool, 4);
+    int width = 200;
+    for(Spreadsheet sheet : new Spreadsheet[]{seq, par}){
+      sheet.setCell("A1","3");
+      for(int k=1; k<=width; k++){
+        sheet.setCell("B"+k, "=A1 * "+k);
+        sheet.setCell("C"+k, "=B"+k+" + B"+(k%width+1)+" - A1");
+      }
+      sheet.setCell("D1","=C1 + C50 + C100 + C"+width);
+    }
+    for(int i=0; i<5; i++){
+      seq.resetEvaluationCount();
+      par.resetEvaluationCount();
+      seq.setCell("A1",""+(i*1.5));
+      par.setCell("A1",""+(i*1.5));
+      assertEquals(seq.getEvaluationCount(), par.getEvaluationCount());
+      assertEquals(2 + 2*width, par.getEvaluationCount());
+      test_spreadsheet(par, seq.toString());
+    }
+    pool.shutdown();
+  }
+
+  // A cell with a high fan-out schedules its dependents without
+  // copying them; the results match with or without the pool and
+  // unchanged dependents still stop propagation
+  @Test public void sheet_fanout1(){
+    Spreadsheet seq = new Spreadsheet();
+    Spreadsheet par = new Spreadsheet();
+    java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(4);
+    par.setParallelRecalc(pool, 64);
+    int width = DAG.HIGH_FAN_OUT + 100;
+    for(Spreadsheet sheet : new Spreadsheet[]{seq, par}){
+      sheet.setCell("A1","2");
+      sheet.beginBatch();
+      for(int k=1; k<=width; k++){
+        sheet.setCell("B"+k, "=A1 * "+k);
+      }
+      sheet.setCell("C1","=B1 + B"+width);
+      sheet.setCell("C2","=B1 * 0");
+      sheet.setCell("C3","=C2 + 1");
+      sheet.commit();
+    }
+    for(int i=3; i<6; i++){
+      seq.setCell("A1",""+i);
+      par.setCell("A1",""+i);
+      for(Spreadsheet sheet : new Spreadsheet[]{seq, par}){
+        assertEquals(i*7.0, sheet.getCellValue("B7"), 0.0);
+        assertEquals(i*(width+1.0), sheet.getCellValue("C1"), 0.0);
+        assertEquals(1.0, sheet.getCellValue("C3"), 0.0);
+        assertEquals(1 + width + 2, sheet.getLastRecalcStats().evaluated);
+        assertEquals(1, sheet.getLastRecalcStats().skipped);
+      }
+    }
+    pool.shutdown();
+  }
+
+  // Batched edits are applied together and shared downstream cells
+  // are evaluated once at commit
+  @Test public void sheet_batch1(){
+    Spreadsheet sheet = new Spreadsheet();
+    int n = 100;
+    StringBuilder sum = new StringBuilder("=A1");
+    for(int k=2; k<=n; k++){
+      sum.append(" + A"+k);
+    }
+    sheet.setCell("B1", sum.toString());
+    sheet.setCell("B2", "=B1 * 2");
+    assertEquals("ERROR", sheet.getCellDisplayString("B2"));
+
+    sheet.resetEvaluationCount();
+    sheet.beginBatch();
+    assertTrue(sheet.isInBatch());
+    for(int k=1; k<=n; k++){
+      sheet.setCell("A"+k, ""+k);
+    }
+    // nothing is visible before commit
+    assertEquals("", sheet.getCellContents("A1"));
+    assertEquals(0, sheet.getEvaluationCount());
+    sheet.commit();
+    assertFalse(sheet.isInBatch());
+    assertEquals(n + 2, sheet.getEvaluationCount());
+    assertEquals(String.format("%.1f", n*(n+1)/2.0), sheet.getCellDisplayString("B1"));
+    assertEquals(String.format("%.1f", n*(n+1)*1.0), sheet.getCellDisplayString("B2"));
+
+    // later edits in a batch replace earlier ones for the same cell
+    sheet.beginBatch();
+    sheet.setCell("A1", "1000");
+    sheet.deleteCell("A2");
+    sheet.setCell("A2", "=A1 + 1");
+    sheet.setCell("A1", "0");
+    sheet.commit();
+    assertEquals("1.0", sheet.getCellDisplayString("A2"));
+    assertEquals(String.format("%.1f", n*(n+1)/2.0 - 1 - 2 + 1), sheet.getCellDisplayString("B1"));
+
+    sheet.beginBatch();
+    sheet.deleteCell("A3");
+    sheet.rollback();
+    assertEquals("3.0", sheet.getCellDisplayString("A3"));
+  }
+  // A batch that introduces a cycle leaves the sheet unchanged
+  @Test public void sheet_batch_cycle1(){
+    Spreadsheet sheet = new Spreadsheet();
+    sheet.setCell("A1","=B1 + 1");
+    sheet.setCell("B1","=C1 + 1");
+    sheet.setCell("C1","5");
+    String before = sheet.toString();
+    sheet.beginBatch();
+    sheet.setCell("D1","=A1");
+    sheet.setCell("C1","=A1 * 2");
+    sheet.setCell("B1","=D1 + 1");
+    boolean cycleFound = false;
+    try{
+      sheet.commit();
+    }
+    catch(DAG.CycleException e){
+      cycleFound = true;
+    }
+    assertTrue(cycleFound);
+    assertFalse(sheet.isInBatch());
+    test_spreadsheet(sheet, before);
+
+    // the same edits without the cycle are fine
+    sheet.beginBatch();
+    sheet.setCell("D1","=C1");
+    sheet.setCell("C1","2");
+    sheet.setCell("B1","=D1 + 1");
+    sheet.commit();
+    assertEquals("4.0", sheet.getCellDisplayString("A1"));
+  }
+
+  // Propagation stops at cells whose value does not change
+  @Test public void sheet_recalc_cutoff1(){
+    Spreadsheet sheet = new Spreadsheet();
+    int layers = 12;
+    build_diamonds(sheet, layers);
+    // same value: only A5 and the cells reading it are evaluated
+    sheet.resetEvaluationCount();
+    sheet.setCell("A5","=B4 + C4 + 0");
+    assertEquals(3, sheet.getEvaluationCount());
+    assertEquals(3, sheet.getLastRecalcStats().evaluated);
+    assertEquals(3*(layers-4)-2, sheet.getLastRecalcStats().skipped);
+  }
+  @Test public void sheet_recalc_cutoff2(){
+    Spreadsheet sheet = new Spreadsheet();
+    sheet.setCell("A1","5");
+    sheet.setCell("B1","=A1 * 0");
+    sheet.setCell("C1","=B1 + 1");
+    sheet.setCell("D1","=C1 * 2");
+    sheet.setCell("E1","=A1 + D1");
+    sheet.setCell("F1","words");
+    sheet.setCell("G1","=F1 + 1");
+
+    // B1 is unchanged so C1 and D1 are skipped; E1 also reads A1
+    sheet.setCell("A1","7");
+    assertEquals(3, sheet.getLastRecalcStats().evaluated);
+    assertEquals(2, sheet.getLastRecalcStats().skipped);
+    assertEquals("9.0", sheet.getCellDisplayString("E1"));
+
+    // error states count as values: G1 stays in error
+    sheet.setCell("F1","other words");
+    assertEquals(2, sheet.getLastRecalcStats().evaluated);
+    assertEquals("ERROR", sheet.getCellDisplayString("G1"));
+    sheet.setCell("F1","3");
+    assertEquals("4.0", sheet.getCellDisplayString("G1"));
+    sheet.deleteCell("F1");
+    assertEquals(1, sheet.getLastRecalcStats().evaluated);
+    assertEquals("ERROR", sheet.getCellDisplayString("G1"));
+
+    // a batch edit seeds every edited cell
+    sheet.beginBatch();
+    sheet.setCell("B1","=A1 * 1");
+    sheet.setCell("A1","7");
+    sheet.commit();
+    assertEquals(5, sheet.getLastRecalcStats().evaluated);
+    assertEquals("23.0", sheet.getCellDisplayString("E1"));
+  }
+
+  // Running balance columns form long dependency chains which are
+  // evaluated without recursion
+  @Test public void sheet_ledger_chain1(){
+    Spreadsheet sheet = new Spreadsheet();
+    int rows = 5000;
+    sheet.beginBatch();
+    sheet.setCell("A1","=B1");
+    sheet.setCell("B1","0");
+    for(int i=2; i<=rows; i++){
+      sheet.setCell("A"+i, "=A"+(i-1)+" + B"+i);
+      sheet.setCell("B"+i, "1");
+    }
+    sheet.commit();
+    assertEquals(String.format("%.1f",rows-1.0), sheet.getCellDisplayString("A"+rows));
+    sheet.setCell("B1","10");
+    assertEquals(rows + 1, sheet.getLastRecalcStats().evaluated);
+    assertEquals(String.format("%.1f",rows+9.0), sheet.getCellDisplayString("A"+rows));
+
+    Spreadsheet lazy = new Spreadsheet(true);
+    lazy.setCell("A1","=B1");
+    for(int i=2; i<=rows; i++){
+      lazy.setCell("A"+i, "=A"+(i-1)+" + 2");
+    }
+    lazy.setCell("B1","1");
+    assertEquals(String.format("%.1f",2.0*rows-1), lazy.getCellDisplayString("A"+rows));
+  }
+
+  // In async mode edits are applied on an executor and reads see the
+  // last completed edit
+  @Test public void sheet_async1() throws Exception{
+    java.util.concurrent.ExecutorService executor =
+      java.util.concurrent.Executors.newSingleThreadExecutor();
+    Spreadsheet sheet = new Spreadsheet();
+    sheet.setCell("A1","1");
+    sheet.setAsync(executor);
+    assertTrue(sheet.isAsync());
+    assertEquals("1.0", sheet.getCellDisplayString("A1"));
+    sheet.setCellAsync("B1","=A1 * 2");
+    sheet.setCellAsync("C1","=B1 + A1");
+    java.util.concurrent.Future<Void> last = sheet.setCellAsync("A1","5");
+    last.get();
+    assertEquals("10.0", sheet.getCellDisplayString("B1"));
+    assertEquals("15.0", sheet.getCellDisplayString("C1"));
+    assertEquals("=B1 + A1", sheet.getCellContents("C1"));
+    assertEquals("", sheet.getCellContents("D1"));
+    assertEquals(null, sheet.getCellValue("D1"));
+
+    // a failed edit is reported through its future and later edits
+    // still run
+    java.util.concurrent.Future<Void> cycle = sheet.setCellAsync("A1","=C1");
+    sheet.deleteCellAsync("B1");
+    sheet.awaitRecalc();
+    boolean cycleFound = false;
+    try{
+      cycle.get();
+    }
+    catch(java.util.concurrent.ExecutionException e){
+      cycleFound = e.getCause() instanceof DAG.CycleException;
+    }
+    assertTrue(cycleFound);
+    assertEquals("5.0", sheet.getCellDisplayString("A1"));
+    assertEquals("", sheet.getCellDisplayString("B1"));
+    assertEquals("ERROR", sheet.getCellDisplayString("C1"));
+
+    sheet.setAsync(null);
+    assertFalse(sheet.isAsync());
+    sheet.setCell("B1","1");
+    assertEquals("6.0", sheet.getCellDisplayString("C1"));
+    executor.shutdown();
+  }
+
+  // setCell and deleteCell in async mode go through the executor and
+  // return once readers see the edit
+  @Test public void sheet_async_sync_edits1(){
+    java.util.concurrent.ExecutorService executor =
+      java.util.concurrent.Executors.newSingleThreadExecutor();
+    Spreadsheet sheet = new Spreadsheet();
+    sheet.setCell("A1","1");
+    sheet.setAsync(executor);
+    sheet.setCell("B1","=A1 * 2");
+    assertEquals("2.0", sheet.getCellDisplayString("B1"));
+    sheet.setCell("A1","4");
+    assertEquals("8.0", sheet.getCellDisplayString("B1"));
+    boolean cycleFound = false;
+    try{
+      sheet.setCell("A1","=B1");
+    }
+    catch(DAG.CycleException e){
+      cycleFound = true;
+    }
+    assertTrue(cycleFound);
+    assertEquals("4.0", sheet.getCellDisplayString("A1"));
+    sheet.deleteCell("A1");
+    assertEquals("ERROR", sheet.getCellDisplayString("B1"));
+    boolean batchRefused = false;
+    try{
+      sheet.beginBatch();
+    }
+    catch(RuntimeException e){
+      batchRefused = true;
+    }
+    assertTrue(batchRefused);
+    sheet.setAsync(null);
+    executor.shutdown();
+  }
+  // Readers running during recalculation never see a mix of values
+  // from different edits
+  @Test public void sheet_async_consistent1() throws Exception{
+    java.util.concurrent.ExecutorService executor =
+      java.util.concurrent.Executors.newSingleThreadExecutor();
+    final Spreadsheet sheet = new Spreadsheet();
+    final int width = 50;
+    final List<String> ids = new ArrayList<String>();
+    sheet.setCell("A1","0");
+    for(int k=1; k<=width; k++){
+      sheet.setCell("B"+k, "=A1 + "+k);
+      ids.add("B"+k);
+    }
+    sheet.setAsync(executor);
+    final boolean [] mixed = {false};
+    Thread reader = new Thread(new Runnable(){
+      public void run(){
+        for(int i=0; i<2000; i++){
+          Map<String,String> displays = sheet.getCellDisplayStrings(ids);
+          double base = Double.parseDouble(displays.get("B1")) - 1;
+          for(int k=1; k<=width; k++){
+            if(Double.parseDouble(displays.get("B"+k)) != base + k){
+              mixed[0] = true;
+            }
+          }
+        }
+      }
+    });
+    reader.start();
+    for(int i=1; i<=200; i++){
+      sheet.setCellAsync("A1",""+i);
+    }
+    reader.join();
+    sheet.awaitRecalc();
+    assertFalse(mixed[0]);
+    assertEquals("250.0", sheet.getCellDisplayString("B50"));
+    executor.shutdown();
+  }
+
+  // Freezing the dependencies does not change results of later edits
+  @Test public void sheet_freeze1(){
+    Spreadsheet plain = new Spreadsheet();
+    Spreadsheet frozen = new Spreadsheet();
+    for(Spreadsheet sheet : new Spreadsheet[]{plain, frozen}){
+      build_diamonds(sheet, 8);
+    }
+    frozen.freezeDependencies();
+    for(Spreadsheet sheet : new Spreadsheet[]{plain, frozen}){
+      sheet.setCell("A1","3");
+      sheet.setCell("B2","=A1 * 10");
+      sheet.deleteCell("C3");
+      sheet.setCell("Z1","=A9 + B2");
+    }
+    test_spreadsheet(frozen, plain.toString());
+  }
+
+  // With cycles allowed, cells on a cycle show CIRCULAR, cells that
+  // depend on them show ERROR, and breaking the cycle restores values
+  @Test public void sheet_circular1(){
+    Spreadsheet sheet = new Spreadsheet();
+    sheet.setAllowCycles(true);
+    sheet.setCell("A1","=B1 + 1");
+    sheet.setCell("B1","=A1 + 1");
+    sheet.setCell("C1","=A1 * 2");
+    sheet.setCell("D1","5");
+    sheet.setCell("E1","=E1");
+    assertEquals("CIRCULAR", sheet.getCellDisplayString("A1"));
+    assertEquals("CIRCULAR", sheet.getCellDisplayString("B1"));
+    assertEquals("ERROR", sheet.getCellDisplayString("C1"));
+    assertEquals("5.0", sheet.getCellDisplayString("D1"));
+    assertEquals("CIRCULAR", sheet.getCellDisplayString("E1"));
+    assertEquals(null, sheet.getCellValue("A1"));
+
+    sheet.setCell("B1","3");
+    assertEquals("4.0", sheet.getCellDisplayString("A1"));
+    assertEquals("3.0", sheet.getCellDisplayString("B1"));
+    assertEquals("8.0", sheet.getCellDisplayString("C1"));
+
+    sheet.deleteCell("E1");
+    sheet.setCell("F1","=E1 + 1");
+    assertEquals("ERROR", sheet.getCellDisplayString("F1"));
+
+    sheet.setCell("B1","=C1");
+    assertEquals("CIRCULAR", sheet.getCellDisplayString("C1"));
+    boolean refused = false;
+    try{
+      sheet.setAllowCycles(false);
+    }
+    catch(DAG.CycleException e){
+      refused = true;
+    }
+    assertTrue(refused);
+    sheet.deleteCell("B1");
+    sheet.setAllowCycles(false);
+    assertEquals("ERROR", sheet.getCellDisplayString("A1"));
+    assertEquals("ERROR", sheet.getCellDisplayString("C1"));
+  }
+
+  // A batch with a cycle in the middle of a long chain loads in one
+  // go, in eager and lazy mode alike
+  @Test public void sheet_circular_batch1(){
+    int rows = 5000;
+    for(boolean lazy : new boolean[]{false, true}){
+      Spreadsheet sheet = new Spreadsheet(lazy);
+      sheet.setAllowCycles(true);
+      sheet.beginBatch();
+      sheet.setCell("A1","1");
+      for(int i=2; i<=rows; i++){
+        sheet.setCell("A"+i, "=A"+(i-1)+" + 1");
+      }
+      sheet.setCell("A100","=A101 + A99");
+      sheet.setCell("B1","=A50");
+      sheet.commit();
+      assertEquals("50.0", sheet.getCellDisplayString("B1"));
+      assertEquals("99.0", sheet.getCellDisplayString("A99"));
+      assertEquals("CIRCULAR", sheet.getCellDisplayString("A101"));
+      assertEquals("ERROR", sheet.getCellDisplayString("A"+rows));
+      if(lazy){
+        sheet.setCell("A100","=A99 + 1");
+        while(!sheet.runRecalcSlice(1000000)){
+        }
+      }
+      else{
+        sheet.setCell("A100","=A99 + 1");
+      }
+      assertEquals(rows+".0", sheet.getCellDisplayString("A"+rows));
+    }
+  }
+
+  // Sets a cell in the given mode: eager, parallel (same as eager once
+  // the pool is set), inside a batch, or lazily followed by slices
+  public static void set_in_mode(Spreadsheet sheet, String mode, String id, String contents){
+    if(mode.equals("batch")){
+      sheet.beginBatch();
+      sheet.setCell(id, contents);
+      sheet.commit();
+    }
+    else{
+      sheet.setCell(id, contents);
+    }
+    while(!sheet.runRecalcSlice(1000000)){
+    }
+  }
+
+  // Closing a cycle marks every member CIRCULAR, including members that
+  // come before the edited cell in the order, and breaking it clears
+  // the state of every former member
+  @Test public void sheet_circular_close1(){
+    java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(2);
+    for(String mode : new String[]{"eager", "parallel", "batch", "slices"}){
+      Spreadsheet sheet = new Spreadsheet(mode.equals("slices"));
+      sheet.setAllowCycles(true);
+      if(mode.equals("parallel")){
+        sheet.setParallelRecalc(pool, 1);
+      }
+      set_in_mode(sheet, mode, "A1", "=B1");
+      set_in_mode(sheet, mode, "B1", "=C1");
+      set_in_mode(sheet, mode, "C1", "=A1");
+      set_in_mode(sheet, mode, "D1", "=A1 + 1");
+      assertEquals(mode, "CIRCULAR", sheet.getCellDisplayString("A1"));
+      assertEquals(mode, "CIRCULAR", sheet.getCellDisplayString("B1"));
+      assertEquals(mode, "CIRCULAR", sheet.getCellDisplayString("C1"));
+      assertEquals(mode, "ERROR", sheet.getCellDisplayString("D1"));
+
+      set_in_mode(sheet, mode, "A3", "=1 - A4");
+      set_in_mode(sheet, mode, "A4", "=C5 * 8");
+      set_in_mode(sheet, mode, "C5", "=A3");
+      assertEquals(mode, "CIRCULAR", sheet.getCellDisplayString("A3"));
+      assertEquals(mode, "CIRCULAR", sheet.getCellDisplayString("A4"));
+      assertEquals(mode, "CIRCULAR", sheet.getCellDisplayString("C5"));
+
+      set_in_mode(sheet, mode, "B1", "5");
+      assertEquals(mode, "5.0", sheet.getCellDisplayString("A1"));
+      assertEquals(mode, "5.0", sheet.getCellDisplayString("C1"));
+      assertEquals(mode, "6.0", sheet.getCellDisplayString("D1"));
+      set_in_mode(sheet, mode, "A4", "2");
+      assertEquals(mode, "-1.0", sheet.getCellDisplayString("A3"));
+      assertEquals(mode, "-1.0", sheet.getCellDisplayString("C5"));
+    }
+  }
+
+  // Breaking a cycle so that a smaller one remains clears the CIRCULAR
+  // state of the former members behind it, which now show ERROR
+  @Test public void sheet_circular_break1(){
+    java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(2);
+    for(String mode : new String[]{"eager", "parallel", "batch", "slices"}){
+      Spreadsheet sheet = new Spreadsheet(mode.equals("slices"));
+      sheet.setAllowCycles(true);
+      if(mode.equals("parallel")){
+        sheet.setParallelRecalc(pool, 1);
+      }
+      set_in_mode(sheet, mode, "A1", "=D1");
+      set_in_mode(sheet, mode, "B1", "=A1 + C1");
+      set_in_mode(sheet, mode, "C1", "=B1");
+      set_in_mode(sheet, mode, "D1", "=C1");
+      assertEquals(mode, "CIRCULAR", sheet.getCellDisplayString("D1"));
+
+      set_in_mode(sheet, mode, "A1", "5");
+      assertEquals(mode, "5.0", sheet.getCellDisplayString("A1"));
+      assertEquals(mode, "CIRCULAR", sheet.getCellDisplayString("B1"));
+      assertEquals(mode, "CIRCULAR", sheet.getCellDisplayString("C1"));
+      assertEquals(mode, "ERROR", sheet.getCellDisplayString("D1"));
+
+      set_in_mode(sheet, mode, "C1", "2");
+      assertEquals(mode, "7.0", sheet.getCellDisplayString("B1"));
+      assertEquals(mode, "2.0", sheet.getCellDisplayString("D1"));
+    }
+  }
+
+  // Interest on the average balance: a circular reference solved by
+  // iteration, with cells downstream of it evaluated afterwards
+  @Test public void sheet_iterative1(){
+    Spreadsheet sheet = new Spreadsheet();
+    sheet.setIterativeCalculation(100, 1e-9);
+    assertTrue(sheet.isAllowCycles());
+    sheet.setCell("A1","1000");
+    sheet.setCell("B1","=C1 * 0.05");
+    sheet.setCell("C1","=(A1 + A1 + B1) / 2");
+    sheet.setCell("D1","=B1 + 1");
+    assertEquals(50/0.975, sheet.getCellValue("B1"), 1e-6);
+    assertEquals("1025.6", sheet.getCellDisplayString("C1"));
+    assertEquals("52.3", sheet.getCellDisplayString("D1"));
+
+    sheet.setCell("A1","2000");
+    assertEquals(100/0.975, sheet.getCellValue("B1"), 1e-6);
+    assertEquals("103.6", sheet.getCellDisplayString("D1"));
+    assertTrue(sheet.getLastRecalcStats().sweeps > 1);
+    assertEquals(0, sheet.getLastRecalcStats().unconverged);
+
+    // a component that never settles keeps its last values
+    sheet.setCell("E1","=F1 + 1");
+    sheet.setCell("F1","=E1");
+    assertEquals(1, sheet.getLastRecalcStats().unconverged);
+    assertEquals(100, sheet.getLastRecalcStats().sweeps);
+    assertTrue(sheet.getCellValue("E1") >= 100);
+
+    // errors inside a cycle stay errors
+    sheet.setCell("F1","=E1 + G1");
+    sheet.setCell("G1","hello");
+    assertEquals("ERROR", sheet.getCellDisplayString("E1"));
+
+    sheet.setIterativeCalculation(0, 0);
+    assertEquals("CIRCULAR", sheet.getCellDisplayString("B1"));
+    assertEquals("ERROR", sheet.getCellDisplayString("D1"));
+    sheet.setIterativeCalculation(100, 1e-9);
+    assertEquals("103.6", sheet.getCellDisplayString("D1"));
+  }
+
+  // Builds a sheet with many independent circular components
+  public static void build_components(Spreadsheet sheet, int count){
+    for(int k=1; k<=count; k++){
+      sheet.setCell("A"+k, ""+k);
+      sheet.setCell("B"+k, "=C"+k+" * 0.5 + A"+k);
+      sheet.setCell("C"+k, "=B"+k+" * 0.5");
+      sheet.setCell("D"+k, "=B"+k+" + C"+k);
+    }
+  }
+
+  // Independent components solved across a pool, or lazily, give the
+  // same results as sequential solving
+  @Test public void sheet_iterative_parallel1(){
+    java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(4);
+    Spreadsheet sequential = new Spreadsheet();
+    Spreadsheet parallel = new Spreadsheet();
+    Spreadsheet lazy = new Spreadsheet(true);
+    parallel.setParallelRecalc(pool, 1);
+    int count = 40;
+    for(Spreadsheet sheet : new Spreadsheet[]{sequential, parallel, lazy}){
+      sheet.setIterativeCalculation(200, 1e-12);
+      sheet.beginBatch();
+      build_components(sheet, count);
+      sheet.commit();
+      sheet.setCell("A3","=A1 + A2");
+    }
+    // B = 0.25 B + A, so B = 4/3 A
+    assertEquals(4.0*3/3, sequential.getCellValue("B3"), 1e-9);
+    assertEquals(4.0*count/3, parallel.getCellValue("B"+count), 1e-9);
+    test_spreadsheet(parallel, sequential.toString());
+    while(!lazy.runRecalcSlice(1000000)){
+    }
+    test_spreadsheet(lazy, sequential.toString());
+    pool.shutdown();
+  }
+
+  // Runs async edits one at a time on the test thread
+  static class ManualExecutor implements java.util.concurrent.Executor{
+    LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+    public void execute(Runnable task){
+      tasks.add(task);
+    }
+    boolean runNext(){
+      if(tasks.isEmpty()){
+        return false;
+      }
+      tasks.removeFirst().run();
+      return true;
+    }
+  }
+
+  // Queued edits replaced by a later constant are skipped, and their
+  // futures still complete
+  @Test public void sheet_async_superseded1() throws Exception{
+    ManualExecutor executor = new ManualExecutor();
+    Spreadsheet sheet = new Spreadsheet();
+    sheet.setCell("A1","0");
+    sheet.setCell("B1","=A1 * 2");
+    sheet.setAsync(executor);
+    List<java.util.concurrent.Future<Void>> edits =
+      new ArrayList<java.util.concurrent.Future<Void>>();
+    for(int i=1; i<=10; i++){
+      edits.add(sheet.setCellAsync("A1",""+i));
+    }
+    // a formula may fail, so it does not replace earlier edits
+    edits.add(sheet.setCellAsync("C1","=B1 + 1"));
+    edits.add(sheet.setCellAsync("C1","=C1"));
+    while(executor.runNext()){
+    }
+    for(java.util.concurrent.Future<Void> edit : edits.subList(0, 11)){
+      assertTrue(edit.isDone());
+      edit.get();
+    }
+    assertTrue(edits.get(11).isDone());
+    assertEquals(9, sheet.getSupersededEdits());
+    assertEquals("20.0", sheet.getCellDisplayString("B1"));
+    assertEquals("21.0", sheet.getCellDisplayString("C1"));
+  }
+
+  // A recalculation whose cone is edited again is abandoned without
+  // publishing, and the next edit finishes its cells
+  @Test public void sheet_async_abort1() throws Exception{
+    ManualExecutor executor = new ManualExecutor();
+    Spreadsheet sheet = new Spreadsheet();
+    int rows = 500;
+    sheet.setCell("A1","1");
+    for(int i=2; i<=rows; i++){
+      sheet.setCell("A"+i, "=A"+(i-1)+" + 1");
+      sheet.setCell("B"+i, "=A1 * "+i);
+    }
+    sheet.setAsync(executor);
+    sheet.setCellAsync("A1","2");
+    sheet.setCellAsync("A1","=3");
+    assertTrue(executor.runNext());
+    assertEquals(1, sheet.getAbortedRecalcs());
+    assertTrue(sheet.getLastRecalcStats().carried > 0);
+    assertEquals("1.0", sheet.getCellDisplayString("A1"));
+    assertEquals(rows+".0", sheet.getCellDisplayString("A"+rows));
+
+    assertTrue(executor.runNext());
+    assertFalse(executor.runNext());
+    assertEquals("3.0", sheet.getCellDisplayString("A1"));
+    assertEquals((rows+2)+".0", sheet.getCellDisplayString("A"+rows));
+    assertEquals((3*rows)+".0", sheet.getCellDisplayString("B"+rows));
+
+    // edits outside the cone do not abandon it
+    sheet.setCellAsync("A1","4");
+    sheet.setCellAsync("C1","=7");
+    while(executor.runNext()){
+    }
+    assertEquals(1, sheet.getAbortedRecalcs());
+    assertEquals((rows+3)+".0", sheet.getCellDisplayString("A"+rows));
+  }
+
+  // The future of a superseded or abandoned edit completes only once
+  // a generation with its values is published, and the bookkeeping of
+  // published edits is dropped
+  @Test public void sheet_async_completion1() throws Exception{
+    ManualExecutor executor = new ManualExecutor();
+    Spreadsheet sheet = new Spreadsheet();
+    int rows = 500;
+    sheet.setCell("A1","1");
+    for(int i=2; i<=rows; i++){
+      sheet.setCell("A"+i, "=A"+(i-1)+" + 1");
+    }
+    sheet.setAsync(executor);
+    java.util.concurrent.Future<Void> superseded = sheet.setCellAsync("B1","1");
+    java.util.concurrent.Future<Void> middle = sheet.setCellAsync("C1","=B1");
+    java.util.concurrent.Future<Void> latest = sheet.setCellAsync("B1","2");
+    assertTrue(executor.runNext());
+    assertFalse(superseded.isDone());
+    assertTrue(executor.runNext());
+    assertTrue(middle.isDone());
+    assertFalse(superseded.isDone());
+    assertTrue(executor.runNext());
+    assertTrue(superseded.isDone());
+    assertTrue(latest.isDone());
+    assertEquals("2.0", sheet.getCellDisplayString("C1"));
+
+    java.util.concurrent.Future<Void> abandoned = sheet.setCellAsync("A1","2");
+    java.util.concurrent.Future<Void> newer = sheet.setCellAsync("A"+(rows/2),"=A1");
+    assertTrue(executor.runNext());
+    assertEquals(1, sheet.getAbortedRecalcs());
+    assertFalse(abandoned.isDone());
+    assertTrue(executor.runNext());
+    assertTrue(abandoned.isDone());
+    assertTrue(newer.isDone());
+    assertEquals((rows/2+2)+".0", sheet.getCellDisplayString("A"+rows));
+    assertTrue(sheet.latestSafeEdit.isEmpty());
+    assertTrue(sheet.unpublished.isEmpty());
+  }
+
+  // Time sliced recalculation brings priority cells up to date first
+  // and eventually evaluates every dirty cell
+  @Test public void sheet_recalc_slices1(){
+    Spreadsheet eager = new Spreadsheet();
+    Spreadsheet lazy = new Spreadsheet(true);
+    int rows = 300;
+    for(Spreadsheet sheet : new Spreadsheet[]{eager, lazy}){
+      sheet.setCell("A1","1");
+      for(int i=2; i<=rows; i++){
+        sheet.setCell("A"+i, "=A"+(i-1)+" + 1");
+        sheet.setCell("B"+i, "=A1 * "+i);
+      }
+      sheet.setCell("C1", "=B2 + B3");
+    }
+    lazy.setLazy(false);
+    lazy.setLazy(true);
+    eager.setCell("A1","2");
+    lazy.setCell("A1","2");
+    assertEquals(2*rows, lazy.getDirtyCount());
+
+    // one cell per slice: C1 needs A1, B2 and B3
+    lazy.setPriorityCells(toSet("C1"));
+    int slices = 0;
+    do{
+      assertFalse(lazy.runRecalcSlice(0));
+      assertEquals(1, lazy.getLastRecalcStats().evaluated);
+      slices++;
+    } while(lazy.dirty.contains("C1"));
+    assertEquals(4, slices);
+    assertEquals(2*rows - 4, lazy.getDirtyCount());
+
+    // edits between slices are picked up
+    lazy.setCell("A2","=A1 + 100");
+    eager.setCell("A2","=A1 + 100");
+    while(!lazy.runRecalcSlice(1000000)){
+    }
+    assertEquals(0, lazy.getDirtyCount());
+    lazy.setLazy(false);
+    test_spreadsheet(lazy, eager.toString());
+  }
+
+  // Taking the next dirty cell costs O(1) however many are dirty, so
+  // one cell per slice over a large dirty set stays linear
+  @Test public void sheet_recalc_slices2(){
+    Spreadsheet lazy = new Spreadsheet(true);
+    int rows = 40000;
+    for(int i=1; i<=rows; i++){
+      lazy.setCell("A"+i, ""+i);
+    }
+    assertEquals(rows, lazy.getDirtyCount());
+    int slices = 1;
+    while(!lazy.runRecalcSlice(0)){
+      assertEquals(1, lazy.getLastRecalcStats().evaluated);
+      slices++;
+    }
+    assertEquals(rows, slices);
+    assertEquals(0, lazy.getDirtyCount());
+  }
+
+  // Contents and values read back the same whatever column store
+  // kind a cell is kept as
+  @Test public void sheet_column_store1(){
+    Spreadsheet sheet = new Spreadsheet();
+    String[][] cells = {
+      {"A1","1"}, {"A2","1.50"}, {"A3","-0"}, {"A4","2.5"}, {"A5","1e3"},
+      {"A6","hello"}, {"A7","=A1 + A4"}, {"ZZ100000","7"}, {"B4097","3"},
+    };
+    for(String[] cell : cells){
+      sheet.setCell(cell[0], cell[1]);
+    }
+    for(String[] cell : cells){
+      assertEquals(cell[1], sheet.getCellContents(cell[0]));
+    }
+    assertEquals(1.5, sheet.getCellValue("A2"), 0.0);
+    assertEquals(1000.0, sheet.getCellValue("A5"), 0.0);
+    assertEquals("3.5", sheet.getCellDisplayString("A7"));
+    assertEquals("hello", sheet.getCellDisplayString("A6"));
+    assertNull(sheet.getCellValue("A6"));
+    sheet.setCell("C1","=A2 + ZZ100000 + B4097");
+    assertEquals(11.5, sheet.getCellValue("C1"), 0.0);
+    sheet.setCell("ZZ100000","hi");
+    assertEquals("ERROR", sheet.getCellDisplayString("C1"));
+    sheet.deleteCell("B4097");
+    assertEquals("", sheet.getCellContents("B4097"));
+  }
+
+  @Test public void store_blocks1(){
+    ColumnStore store = new ColumnStore();
+    int n = 100000;
+    for(int i=1; i<=n; i++){
+      store.put("A"+i, Cell.make(""+i));
+    }
+    assertEquals(n, store.size());
+    assertEquals(""+n, store.get("A"+n).contents());
+    // numbers cost a value and a kind byte each
+    assertTrue(store.blockBytes()+" bytes", store.blockBytes() < 10L*n);
+    for(int i=1; i<=n; i++){
+      store.remove("A"+i);
+    }
+    assertEquals(0, store.size());
+    assertEquals(0, store.blocks);
+    assertEquals(ColumnStore.MIN_TABLE, store.keys.length);
+    assertFalse(store.containsKey("A1"));
+  }
+
+  // Scattered cells, as far out as ZZZZZ1 and A999999999, cost about as
+  // much as in a HashMap rather than a block of rows or a column table
+  // each
+  @Test public void store_sparse1(){
+    java.lang.management.ThreadMXBean bean = java.lang.management.ManagementFactory.getThreadMXBean();
+    boolean counting = bean instanceof com.sun.management.ThreadMXBean
+      && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()
+      && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemoryEnabled();
+    int n = 2000;
+    String[] ids = new String[n];
+    Cell[] cells = new Cell[n];
+    Random rand = new Random(22);
+    for(int i=0; i<n; i++){
+      ids[i] = ColumnStore.idOf(((long) rand.nextInt(26*26*26*26*26) << 32) | (1 + rand.nextInt(999999999)));
+      cells[i] = Cell.make(i % 2 == 0 ? "text "+i : ""+i);
+    }
+    ids[0] = "ZZZZZ1";
+    ids[1] = "A999999999";
+    long thread = Thread.currentThread().getId();
+    long before = counting ? ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(thread) : 0;
+    ColumnStore store = new ColumnStore();
+    for(int i=0; i<n; i++){
+      store.put(ids[i], cells[i]);
+    }
+    if(counting){
+      long allocated = ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(thread) - before;
+      assertTrue(allocated+" bytes allocated", allocated < 300L*n);
+    }
+    assertTrue(store.blockBytes()+" bytes", store.blockBytes() < 200L*n);
+    for(int i=0; i<n; i++){
+      assertEquals(ids[i], cells[i].contents(), store.get(ids[i]).contents());
+    }
+    for(int i=0; i<n; i++){
+      store.remove(ids[i]);
+    }
+    assertEquals(0, store.size());
+    assertEquals(ColumnStore.MIN_TABLE, store.keys.length);
+  }
+
+  // A block holds its cells in order while sparse and by slot once
+  // dense, through inserts and removals in any order
+  @Test public void store_dense1(){
+    ColumnStore store = new ColumnStore();
+    Map<String,String> expect = new HashMap<>();
+    Random rand = new Random(7);
+    for(int t=0; t<20000; t++){
+      String id = "C"+(1 + rand.nextInt(2*ColumnStore.BLOCK_SIZE));
+      if(rand.nextInt(4) == 0){
+        store.remove(id);
+        expect.remove(id);
+      } else {
+        String contents = rand.nextBoolean() ? ""+t : "t"+t;
+        store.put(id, Cell.make(contents));
+        expect.put(id, contents);
+      }
+    }
+    assertEquals(expect.size(), store.size());
+    Map<String,String> found = new HashMap<>();
+    String last = null;
+    for(Map.Entry<String,Cell> entry : store.entrySet()){
+      found.put(entry.getKey(), entry.getValue().contents());
+      int row = Integer.parseInt(entry.getKey().substring(1));
+      assertTrue(last == null || Integer.parseInt(last.substring(1)) < row);
+      last = entry.getKey();
+    }
+    assertEquals(expect, found);
+  }
+
+  // Stored cells are returned as they were put, so their display
+  // strings stay cached; numbers kept as their value are shown straight
+  // from it
+  @Test public void store_reads1(){
+    ColumnStore store = new ColumnStore();
+    Cell text = Cell.make("hello");
+    Cell padded = Cell.make("1.50");
+    Cell formula = Cell.make("=A2 * 2");
+    store.put("A1", text);
+    store.put("A2", padded);
+    store.put("A3", formula);
+    store.put("A4", Cell.make("7"));
+    store.put("A5", Cell.make("-2.25"));
+    formula.updateValue(store);
+    assertSame(text, store.get("A1"));
+    assertSame(padded, store.get("A2"));
+    assertSame(formula, store.get("A3"));
+    assertSame(store.get("A2").displayString(), store.displayString("A2"));
+    assertSame(store.displayString("A3"), store.displayString("A3"));
+    assertEquals("hello", store.displayString("A1"));
+    assertEquals("3.0", store.displayString("A3"));
+    assertEquals("7.0", store.displayString("A4"));
+    assertEquals("-2.3", store.displayString("A5"));
+    assertEquals("7", store.contents("A4"));
+    assertEquals("-2.25", store.contents("A5"));
+    assertEquals("1.50", store.contents("A2"));
+    assertEquals("-2.25", store.get("A5").contents());
+    assertEquals(-2.25, store.get("A5").value(), 0.0);
+    assertNull(store.displayString("A6"));
+    assertNull(store.contents("B1"));
+  }
+
+  // A number kept as its value is rendered once until it is written
+  // again, and cells built from it reuse that rendering
+  @Test public void store_display_cache1(){
+    ColumnStore store = new ColumnStore();
+    store.put("A1", Cell.make("7"));
+    store.put("A2", Cell.make("0.25"));
+    String display = store.displayString("A1");
+    assertEquals("7.0", display);
+    assertSame(display, store.displayString("A1"));
+    assertSame(display, store.get("A1").displayString());
+    assertEquals("0.3", store.displayString("A2"));
+    store.put("A1", Cell.make("8"));
+    assertEquals("8.0", store.displayString("A1"));
+    assertEquals("8", store.contents("A1"));
+    store.put("A1", Cell.make("=A2 * 4"));
+    assertEquals("=A2 * 4", store.contents("A1"));
+    store.get("A1").updateValue(store);
+    assertEquals("1.0", store.displayString("A1"));
+    store.remove("A2");
+    store.put("A2", Cell.make("3"));
+    assertEquals("3.0", store.displayString("A2"));
+
+    Spreadsheet sheet = new Spreadsheet();
+    sheet.setCell("B1", "5");
+    assertSame(sheet.getCellDisplayString("B1"), sheet.getCellDisplayString("B1"));
+    sheet.setCell("B1", "6");
+    assertEquals("6.0", sheet.getCellDisplayString("B1"));
+  }
+
+  @Test public void store_readColumn1(){
+    ColumnStore store = new ColumnStore();
+    store.put("B2", Cell.make("4"));
+    store.put("B3", Cell.make("text"));
+    store.put("B5", Cell.make("0.25"));
+    store.put("b4", Cell.make("9"));
+    double[] values = new double[5];
+    assertEquals(2, store.readColumn("B", 1, values));
+    assertTrue(Double.isNaN(values[0]));
+    assertEquals(4.0, values[1], 0.0);
+    assertTrue(Double.isNaN(values[2]));
+    assertTrue(Double.isNaN(values[3]));
+    assertEquals(0.25, values[4], 0.0);
+    assertEquals(4, store.size());
+    Set<String> ids = new HashSet<>();
+    for(Map.Entry<String,Cell> entry : store.entrySet()){
+      ids.add(entry.getKey());
+    }
+    assertEquals(new HashSet<>(Arrays.asList("B2","B3","B5","b4")), ids);
+  }
 }